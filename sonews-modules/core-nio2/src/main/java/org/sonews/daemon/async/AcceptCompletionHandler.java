@@ -18,16 +18,21 @@
 
 package org.sonews.daemon.async;
 
+import java.io.IOException;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import org.sonews.config.Config;
 
 import org.sonews.daemon.Connections;
 import org.sonews.util.Log;
+import org.springframework.context.ApplicationContext;
 
 /**
+ * Handles accepted connections: creates an AsynchronousNNTPConnection for
+ * every accepted channel, sends the greeting and starts reading.
  *
  * @author Christian Lins
  */
@@ -35,27 +40,47 @@ class AcceptCompletionHandler
     implements CompletionHandler<AsynchronousSocketChannel,Void> {
 
     private final AsynchronousServerSocketChannel serverChannel;
+    private final ApplicationContext context;
+    private final Executor workers;
 
-    public AcceptCompletionHandler(AsynchronousServerSocketChannel serverChannel) {
+    public AcceptCompletionHandler(AsynchronousServerSocketChannel serverChannel,
+            ApplicationContext context, Executor workers) {
         this.serverChannel = serverChannel;
+        this.context = context;
+        this.workers = workers;
     }
 
     @Override
     public void completed(AsynchronousSocketChannel channel, Void v) {
-        Log.get().log(Level.INFO, "Accepted: {0}", channel);
+        Log.get().log(Level.FINE, "Accepted: {0}", channel);
         serverChannel.accept(null, this);
 
-        AsynchronousNNTPConnection conn = new AsynchronousNNTPConnection(channel);
-        Connections.getInstance().add(conn);
-        
-        conn.println("200 " + Config.inst().get(Config.HOSTNAME, "localhost")
-                            + " <unknown version>" // + Application.VERSION
-                            + " news server ready - (posting ok).");
+        try {
+            AsynchronousNNTPConnection conn = new AsynchronousNNTPConnection(channel, workers);
+            context.getAutowireCapableBeanFactory().autowireBean(conn);
+            Connections.getInstance().add(conn);
+
+            conn.println("200 " + Config.inst().get(Config.HOSTNAME, "localhost")
+                                + " <unknown version>" // + Application.VERSION
+                                + " news server ready - (posting ok).");
+            conn.read();
+        } catch (IOException ex) {
+            Log.get().log(Level.WARNING, "Error accepting connection: {0}", ex);
+            try {
+                channel.close();
+            } catch (IOException ex2) {
+                Log.get().log(Level.INFO, ex2.getLocalizedMessage());
+            }
+        }
     }
 
     @Override
     public void failed(Throwable thrwbl, Void a) {
-        Log.get().log(Level.WARNING, thrwbl.getLocalizedMessage(), thrwbl);
+        if (serverChannel.isOpen()) {
+            Log.get().log(Level.WARNING, thrwbl.getLocalizedMessage(), thrwbl);
+            // Keep accepting, e.g. after running out of file descriptors
+            serverChannel.accept(null, this);
+        }
     }
 
 }
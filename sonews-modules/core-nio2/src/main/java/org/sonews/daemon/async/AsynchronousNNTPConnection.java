@@ -20,178 +20,153 @@ package org.sonews.daemon.async;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
-import org.sonews.acl.User;
-import org.sonews.daemon.ChannelLineBuffers;
-import org.sonews.daemon.LineEncoder;
-import org.sonews.daemon.NNTPConnection;
-import org.sonews.daemon.SocketChannelWrapper;
+import org.sonews.config.Config;
+import org.sonews.daemon.AbstractNNTPConnection;
+import org.sonews.daemon.Connections;
 import org.sonews.daemon.SocketChannelWrapperFactory;
-import static org.sonews.daemon.sync.SynchronousNNTPConnection.NEWLINE;
-import org.sonews.storage.Article;
-import org.sonews.storage.Group;
 import org.sonews.util.Log;
 
 /**
+ * NNTPConnection using an AsynchronousSocketChannel. There is always at most
+ * one pending read and one pending write operation per connection; the next
+ * operation is started by the completion handler of the previous one. The
+ * received lines are processed by a worker thread before the next read is
+ * started, so they are processed one after another. The workers are not the
+ * threads of the AsynchronousChannelGroup, so that slow commands do not delay
+ * the completion of the reads and writes of other connections. If a client
+ * does not receive its output fast enough, no further input is read or
+ * processed until the write completion handler resumes the connection.
  *
  * @author Christian Lins
+ * @since sonews/2.0
  */
-public class AsynchronousNNTPConnection implements NNTPConnection {
+public class AsynchronousNNTPConnection extends AbstractNNTPConnection {
+
+    private static final ReadCompletionHandler readHandler =
+            new ReadCompletionHandler();
+    private static final WriteCompletionHandler writeHandler =
+            new WriteCompletionHandler();
 
     private final AsynchronousSocketChannel channel;
-    private final SocketChannelWrapper channelWrapper;
-    private final ChannelLineBuffers lineBuffers = new ChannelLineBuffers();
+    private final Executor workers;
+    /** true while a write operation is pending */
+    private final AtomicBoolean writing = new AtomicBoolean(false);
 
-    public AsynchronousNNTPConnection(AsynchronousSocketChannel channel) {
+    public AsynchronousNNTPConnection(AsynchronousSocketChannel channel,
+            Executor workers) throws IOException {
         this.channel = channel;
-        this.channelWrapper = new SocketChannelWrapperFactory(channel).create();
+        this.workers = workers;
+        setChannelWrapper(new SocketChannelWrapperFactory(channel).create());
     }
 
-    @Override
-    public void close() throws IOException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
-
-    @Override
-    public ChannelLineBuffers getBuffers() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
-
-    @Override
-    public long getLastActivity() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
-
-    @Override
-    public SocketChannelWrapper getSocketChannel() {
-        return channelWrapper;
-    }
-
-    @Override
-    public boolean tryReadLock() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
-
-    @Override
-    public void lineReceived(byte[] line) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
-
-    @Override
-    public void unlockReadLock() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
-
-    @Override
-    public ByteBuffer getOutputBuffer() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
-
-    @Override
-    public void setLastActivity(long time) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    /**
+     * Starts the next read operation on the channel. The data is read into
+     * the input buffer and handled by the ReadCompletionHandler.
+     */
+    void read() {
+        ByteBuffer inputBuffer = lineBuffers.getReadBuffer();
+        if (inputBuffer == null) {
+            return; // Buffers were already recycled, the connection is closed
+        }
+        channel.read(inputBuffer, this, readHandler);
     }
 
-    @Override
-    public ByteBuffer getInputBuffer() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    /**
+     * Called by the ReadCompletionHandler when data was read into the input
+     * buffer. Processes all complete lines and starts the next read.
+     */
+    void inputReceived() {
+        workers.execute(this::processInputAndRead);
     }
 
-    @Override
-    public Article getCurrentArticle() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    private void processInputAndRead() {
+        try {
+            processInput();
+        } catch (RuntimeException ex) {
+            Log.get().log(Level.SEVERE, "Exception in AsynchronousNNTPConnection: {0}", ex);
+            ex.printStackTrace();
+        }
+        if (lineBuffers.resumeWhenDrained(
+                () -> workers.execute(this::processInputAndRead))) {
+            return;
+        }
+        read();
     }
 
+    /**
+     * Starts a write operation if there is none pending.
+     */
     @Override
-    public Charset getCurrentCharset() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    protected void outputAdded() {
+        if (writing.compareAndSet(false, true)) {
+            write();
+        }
     }
 
-    @Override
-    public Group getCurrentGroup() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
+    /**
+     * Writes all pending output buffers with one gathering write operation.
+     * Must only be called by the thread that set the writing flag or by the
+     * WriteCompletionHandler.
+     */
+    void write() {
+        ByteBuffer[] bufs = lineBuffers.getOutputBuffers();
+        if (bufs.length == 0) {
+            writing.set(false);
+            // Output may have been added after getOutputBuffers() but before
+            // the flag was cleared
+            if (!lineBuffers.isOutputBufferEmpty()) {
+                outputAdded();
+            }
+            return;
+        }
 
-    @Override
-    public User getUser() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        // A client that does not read its responses is disconnected after
+        // the usual idle timeout
+        long timeout = Config.inst().get(Config.TIMEOUT, 180);
+        channel.write(bufs, 0, bufs.length, timeout, TimeUnit.SECONDS, this,
+                writeHandler);
     }
 
     /**
-     * Puts the given line into the output buffer, adds a newline character and
-     * returns. The method returns immediately and does not block until the line
-     * was sent. If line is longer than 510 octets it is split up in several
-     * lines. Each line is terminated by \r\n (NNTPConnection.NEWLINE).
-     *
-     * @param line
-     * @param charset
-     * @throws java.io.IOException
+     * Called by the WriteCompletionHandler after a write operation completed.
      */
-    public void println(final CharSequence line, final Charset charset)
-            throws IOException {
-        writeToChannel(CharBuffer.wrap(line), charset, line);
-        writeToChannel(CharBuffer.wrap(NEWLINE), charset, null);
+    void outputWritten() {
+        lineBuffers.recycleWrittenBuffers();
+        setLastActivity(System.currentTimeMillis());
+        write();
     }
 
     /**
-     * Writes the given raw lines to the output buffers and finishes with a
-     * newline character (\r\n).
-     *
-     * @param rawLines
-     * @throws java.io.IOException
+     * Called by the ReadCompletionHandler if the remote host has closed its
+     * side of the connection. Pending output is written before the channel
+     * is closed.
      */
-    @Override
-    public void println(final byte[] rawLines) throws IOException {
-        this.lineBuffers.addOutputBuffer(ByteBuffer.wrap(rawLines));
-        writeToChannel(CharBuffer.wrap(NEWLINE), StandardCharsets.UTF_8, null);
+    void endOfStream() {
+        Connections.getInstance().remove(this);
+        try {
+            close();
+        } catch (IOException ex) {
+            Log.get().log(Level.WARNING, "AsynchronousNNTPConnection.endOfStream(): {0}", ex);
+        }
     }
 
     /**
-     * Encodes the given CharBuffer using the given Charset to a bunch of
-     * ByteBuffers (each 512 bytes large) and enqueues them for writing at the
-     * connected SocketChannel.
-     *
-     * @throws java.io.IOException
+     * Called if a read or write operation failed. Removes this connection from
+     * the Connections management and closes the channel immediately.
      */
-    private void writeToChannel(CharBuffer characters, final Charset charset,
-            CharSequence debugLine) throws IOException {
-        if (!charset.canEncode()) {
-            Log.get().log(Level.SEVERE, "FATAL: Charset {0} cannot encode!",
-                    charset);
-            return;
+    void abort() {
+        Connections.getInstance().remove(this);
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            Log.get().log(Level.WARNING, "AsynchronousNNTPConnection.abort(): {0}", ex);
         }
-
-        // Write characters to output buffers
-        LineEncoder lenc = new LineEncoder(characters, charset);
-        lenc.encode(lineBuffers);
-
-        //enableWriteEvents(debugLine);
-    }
-
-    @Override
-    public void setCurrentArticle(Article art) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
-
-    @Override
-    public void setCurrentGroup(Group group) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        lineBuffers.recycleBuffers();
     }
-
-    @Override
-    public void setUser(User user) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
-
-    @Override
-    public void println(CharSequence line) {
-       
-    }
-
-
 }
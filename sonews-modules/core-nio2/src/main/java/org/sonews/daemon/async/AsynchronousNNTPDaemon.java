@@ -20,30 +20,42 @@ package org.sonews.daemon.async;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import org.sonews.daemon.DaemonRunner;
+import org.sonews.daemon.DaemonThread;
 import org.sonews.daemon.NNTPDaemonRunnable;
 import org.sonews.util.Log;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
 
 /**
  * Daemon listening for incoming connections using Java 7 Asynchronous
- * Socket NIO API.
+ * Socket NIO API. All I/O completions are handled by the threads of an
+ * AsynchronousChannelGroup, the commands are processed by a separate pool of
+ * worker threads; idle connections are closed by the Connections timing
+ * wheel.
  *
  * @author Christian Lins
  */
 @Component
 public class AsynchronousNNTPDaemon extends DaemonRunner implements NNTPDaemonRunnable {
 
+    @Autowired
+    private ApplicationContext context;
+
     private int port;
     private AsynchronousServerSocketChannel serverSocketChannel;
     private AsynchronousChannelGroup channelGroup;
+    private ExecutorService workers;
 
     public AsynchronousNNTPDaemon() {
     }
@@ -56,20 +68,42 @@ public class AsynchronousNNTPDaemon extends DaemonRunner implements NNTPDaemonRu
     @Override
     public void run() {
         try {
-            final int workerThreads = Math.max(4, 2 *
-                    Runtime.getRuntime().availableProcessors());
+            final int processors = Runtime.getRuntime().availableProcessors();
+            final int workerThreads = Math.max(4, 2 * processors);
+            // DaemonThreads so that the threads use the BufferPool caches
             channelGroup = AsynchronousChannelGroup.withFixedThreadPool(
-                    workerThreads, Executors.defaultThreadFactory());
+                    processors, DaemonThread::new);
+            workers = Executors.newFixedThreadPool(workerThreads,
+                    DaemonThread::new);
 
             serverSocketChannel = AsynchronousServerSocketChannel.open(channelGroup);
+            serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
             serverSocketChannel.bind(new InetSocketAddress(port));
 
             serverSocketChannel.accept(null,
-                    new AcceptCompletionHandler(serverSocketChannel));
+                    new AcceptCompletionHandler(serverSocketChannel, context,
+                            workers));
 
             channelGroup.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
         } catch(IOException | InterruptedException ex) {
             Log.get().log(Level.SEVERE, ex.getLocalizedMessage(), ex);
         }
     }
+
+    @Override
+    public void dispose() {
+        try {
+            if (serverSocketChannel != null) {
+                serverSocketChannel.close();
+            }
+        } catch (IOException ex) {
+            Log.get().log(Level.WARNING, ex.getLocalizedMessage(), ex);
+        }
+        if (channelGroup != null) {
+            channelGroup.shutdown();
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
 }
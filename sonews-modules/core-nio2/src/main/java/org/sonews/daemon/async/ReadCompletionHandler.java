@@ -18,22 +18,36 @@
 
 package org.sonews.daemon.async;
 
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.CompletionHandler;
+import java.util.logging.Level;
+
+import org.sonews.util.Log;
 
 /**
+ * Handles completed read operations of AsynchronousNNTPConnections.
  *
  * @author Christian Lins
  */
-public class ReadCompletionHandler implements CompletionHandler<Integer,Void>{
+public class ReadCompletionHandler
+        implements CompletionHandler<Integer, AsynchronousNNTPConnection> {
 
     @Override
-    public void completed(Integer v, Void a) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public void completed(Integer read, AsynchronousNNTPConnection conn) {
+        if (read < 0) { // End of stream
+            conn.endOfStream();
+        } else {
+            conn.inputReceived();
+        }
     }
 
     @Override
-    public void failed(Throwable thrwbl, Void a) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public void failed(Throwable ex, AsynchronousNNTPConnection conn) {
+        if (!(ex instanceof AsynchronousCloseException)) {
+            // The connection was probably closed by the remote host
+            // in a non-clean fashion
+            Log.get().log(Level.INFO, "ReadCompletionHandler.failed(): {0}", ex);
+        }
+        conn.abort();
     }
-    
 }
@@ -5,10 +5,31 @@
  */
 package org.sonews.daemon.async;
 
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CompletionHandler;
+import java.util.logging.Level;
+
+import org.sonews.util.Log;
+
 /**
+ * Handles completed gathering write operations of
+ * AsynchronousNNTPConnections and starts the next one.
  *
  * @author clins
  */
-public class WriteCompletionHandler {
-    
+public class WriteCompletionHandler
+        implements CompletionHandler<Long, AsynchronousNNTPConnection> {
+
+    @Override
+    public void completed(Long written, AsynchronousNNTPConnection conn) {
+        conn.outputWritten();
+    }
+
+    @Override
+    public void failed(Throwable ex, AsynchronousNNTPConnection conn) {
+        if (!(ex instanceof AsynchronousCloseException)) {
+            Log.get().log(Level.WARNING, "Error writing to channel: {0}", ex);
+        }
+        conn.abort();
+    }
 }
@@ -34,6 +34,33 @@ public class Config extends AbstractConfig {
     public static final int LEVEL_FILE = 2;
 
     public static final String CONFIGFILE = "sonews.configfile";
+    /**
+     * Key constant. Value is the maximum number of connections accepted per
+     * second; default: 0 (unlimited)
+     */
+    public static final String ACCEPT_RATE = "sonews.accept.rate";
+    /**
+     * Key constant. Value is the number of connections that may be accepted
+     * at once above the accept rate; default: the accept rate
+     */
+    public static final String ACCEPT_BURST = "sonews.accept.burst";
+    /**
+     * Key constant. Value is the number of accepting threads of the
+     * SynchronousNNTPDaemon, each with its own server socket bound using
+     * SO_REUSEPORT; default: 1
+     */
+    public static final String ACCEPTORS = "sonews.acceptors";
+    /**
+     * Key constant. Value is the maximum amount of direct buffer memory in
+     * kilobytes used for the connection buffers.
+     */
+    public static final String BUFFERS_MAXDIRECT = "sonews.buffers.maxdirect";
+    /**
+     * Key constant. Value is the maximum number of client connections;
+     * further clients are rejected with a 400 response. Default: 0
+     * (unlimited)
+     */
+    public static final String CONNECTIONS_MAX = "sonews.connections.max";
     /**
      * BackendConfig key constant. Value is the maximum article size in
      * kilobytes.
@@ -49,8 +76,48 @@ public class Config extends AbstractConfig {
     public static final String FEED_PULLINTERVAL = "sonews.feed.pullinterval";
 
     public static final String HOSTNAME = "sonews.hostname";
+    /**
+     * Key constant. Value is the amount of pending output in kilobytes above
+     * which a connection stops producing output and reading commands until
+     * the client has received the output down to the low water mark.
+     */
+    public static final String OUTPUT_HIGHWATERMARK = "sonews.output.highwatermark";
+    /**
+     * Key constant. Value is the amount of pending output in kilobytes below
+     * which a paused connection resumes.
+     */
+    public static final String OUTPUT_LOWWATERMARK = "sonews.output.lowwatermark";
+    /**
+     * Key constant. Value is the amount of pending output of all connections
+     * in kilobytes above which every connection exceeding the low water mark
+     * is paused.
+     */
+    public static final String OUTPUT_MAXMEMORY = "sonews.output.maxmemory";
     public static final String PORT = "sonews.port";
+    /**
+     * Key constant. Value is the number of reader/writer Selector pairs of the
+     * SynchronousNNTPDaemon; default is the number of available processors.
+     */
+    public static final String SELECTORS = "sonews.selectors";
     public static final String TIMEOUT = "sonews.timeout";
+    /**
+     * Key constant. Value is the granularity of the connection timeouts in
+     * milliseconds; default: 1000
+     */
+    public static final String TIMEOUT_TICK = "sonews.timeout.tick";
+    /**
+     * Key constant. Value is the path of the key store (PKCS12 or JKS)
+     * holding the private key and certificate of the server; if not set
+     * STARTTLS is not offered.
+     */
+    public static final String TLS_KEYSTORE = "sonews.tls.keystore";
+    /** Key constant. Value is the password of the TLS key store. */
+    public static final String TLS_PASSWORD = "sonews.tls.password";
+    /**
+     * Key constant. Value is the port for NNTP over implicit TLS (usually
+     * 563); default: 0 (disabled)
+     */
+    public static final String TLS_PORT = "sonews.tls.port";
     public static final String LOGLEVEL = "sonews.loglevel";
 
     public static final String MLPOLL_DELETEUNKNOWN = "sonews.mlpoll.deleteunknown";
@@ -77,13 +144,28 @@ public class Config extends AbstractConfig {
     public static final String STORAGE_DBMSDRIVER = "sonews.storage.dbmsdriver";
     /** Key constant. Value is JDBC connect String to the database. */
     public static final String STORAGE_DATABASE = "sonews.storage.database";
+    /**
+     * Key constant. Value is the number of rows the JDBC driver fetches at
+     * once for range requests like OVER; default: 256
+     */
+    public static final String STORAGE_FETCHSIZE = "sonews.storage.fetchsize";
     public static final String STORAGE_HOST = "sonews.storage.host";
+    /**
+     * Key constant. Value is a comma separated list of headers that are
+     * kept in addition to the overview for HDR/XHDR; default: "Newsgroups"
+     */
+    public static final String STORAGE_INDEXEDHEADERS = "sonews.storage.indexedheaders";
     /** Key constant. Value is the username for the DBMS. */
     public static final String STORAGE_USER = "sonews.storage.user";
     /** Key constant. Value is the password for the DBMS. */
     public static final String STORAGE_PASSWORD = "sonews.storage.password";
     public static final String STORAGE_PORT     = "sonews.storage.port";
     public static final String STORAGE_PROVIDER = "sonews.storage.provider";
+    /**
+     * Key constant. Value is the directory of the article spool; if not set
+     * the articles are served from the database only.
+     */
+    public static final String STORAGE_SPOOL = "sonews.storage.spool";
 
     /**
      * Key constant. Value is the name of the host which is allowed to use the
@@ -93,11 +175,14 @@ public class Config extends AbstractConfig {
 
     /** The config key for the filename of the logfile */
     public static final String LOGFILE = "sonews.log";
-    public static final String[] AVAILABLE_KEYS = { ARTICLE_MAXSIZE, EVENTLOG,
+    public static final String[] AVAILABLE_KEYS = { ACCEPT_BURST, ACCEPT_RATE,
+            ACCEPTORS, ARTICLE_MAXSIZE, BUFFERS_MAXDIRECT, CONNECTIONS_MAX, EVENTLOG,
             FEED_NEWSPERRUN, FEED_PULLINTERVAL, HOSTNAME, MLPOLL_DELETEUNKNOWN,
             MLPOLL_HOST, MLPOLL_PASSWORD, MLPOLL_USER, MLSEND_ADDRESS,
             MLSEND_HOST, MLSEND_PASSWORD, MLSEND_PORT, MLSEND_RW_FROM,
-            MLSEND_RW_SENDER, MLSEND_USER, PORT, TIMEOUT, XDAEMON_HOST };
+            MLSEND_RW_SENDER, MLSEND_USER, OUTPUT_HIGHWATERMARK,
+            OUTPUT_LOWWATERMARK, OUTPUT_MAXMEMORY, PORT, SELECTORS, TIMEOUT,
+            TIMEOUT_TICK, TLS_KEYSTORE, TLS_PASSWORD, TLS_PORT, XDAEMON_HOST };
     private static final Config instance = new Config();
 
     public static Config inst() {
@@ -0,0 +1,587 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import javax.net.ssl.SSLEngine;
+
+import org.sonews.acl.User;
+import org.sonews.daemon.command.Command;
+import org.sonews.daemon.command.RawLineCommand;
+import org.sonews.storage.Article;
+import org.sonews.storage.Group;
+import org.sonews.storage.StorageBackendException;
+import org.sonews.util.Log;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * Base class of the NNTPConnections. It parses the received lines, dispatches
+ * them to the commands and encodes the responses into the output buffers. How
+ * the buffers are read from and written to the channel is up to the
+ * subclasses.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public abstract class AbstractNNTPConnection implements NNTPConnection {
+
+    public static final String NEWLINE = "\r\n"; // RFC defines this as newline
+    public static final String MESSAGE_ID_PATTERN = "<[^>]+>";
+
+    /** The wrapped channels are generally thread-safe */
+    private SocketChannelWrapper channelWrapper;
+    private Charset charset = Charset.forName("UTF-8");
+    private Command command = null;
+    
+    @Autowired
+    protected ApplicationContext context;
+    
+    private ArticleCursor currentArticle = null;
+    private Group currentGroup = null;
+    private volatile long lastActivity = System.currentTimeMillis();
+    protected final ChannelLineBuffers lineBuffers = new ChannelLineBuffers();
+    private final LineEncoder lineEncoder = new LineEncoder(lineBuffers);
+    /** Output is only published if this is zero, see cork() */
+    private int corked = 0;
+    private volatile int pipelineDepth = 0;
+    private volatile int maxPipelineDepth = 0;
+    private User user;
+
+    protected AbstractNNTPConnection() {
+    }
+    
+    public void setChannelWrapper(SocketChannelWrapper channelWrapper)
+            throws IOException
+    {
+        if (channelWrapper == null) {
+            throw new IllegalArgumentException("channel is null");
+        }
+
+        this.channelWrapper = channelWrapper;
+    }
+
+    /**
+     * @return Current input buffer of this NNTPConnection instance.
+     */
+    @Override
+    public ByteBuffer getInputBuffer() {
+        return this.lineBuffers.getInputBuffer();
+    }
+
+    /**
+     * @return Output buffer of this NNTPConnection which has at least one byte
+     *         free storage.
+     */
+    @Override
+    public ByteBuffer getOutputBuffer() {
+        return this.lineBuffers.getOutputBuffer();
+    }
+
+    /**
+     * @return ChannelLineBuffers instance associated with this NNTPConnection.
+     */
+    @Override
+    public ChannelLineBuffers getBuffers() {
+        return this.lineBuffers;
+    }
+
+    /**
+     * @return true if this connection comes from a local remote address.
+     */
+    public boolean isLocalConnection() {
+        try {
+            return "localhost".equalsIgnoreCase(((InetSocketAddress) this.channelWrapper
+                    .getRemoteAddress()).getHostName());
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    protected void shutdownInput() {
+        try {
+            // Closes the input line of the channel's socket, so no new data
+            // will be received and a timeout can be triggered.
+            this.channelWrapper.shutdownInput();
+        } catch (IOException ex) {
+            Log.get().log(Level.WARNING,
+                    "Exception in NNTPConnection.shutdownInput(): {0}", ex);
+        }
+    }
+
+    protected void shutdownOutput() {
+        // Give the pending output three seconds to be written
+        Connections.getInstance().schedule(() -> {
+            try {
+                // Closes the output line of the channel's socket.
+                channelWrapper.shutdownOutput();
+                channelWrapper.close();
+                lineBuffers.recycleBuffers();
+            } catch (SocketException ex) {
+                // Socket was already disconnected
+                Log.get().log(Level.INFO,
+                        "NNTPConnection.shutdownOutput(): {0}", ex);
+            } catch (IOException ex) {
+                Log.get().log(Level.WARNING,
+                        "NNTPConnection.shutdownOutput(): {0}", ex);
+            }
+        }, 3000);
+    }
+
+    @Override
+    public SocketChannelWrapper getSocketChannel() {
+        return this.channelWrapper;
+    }
+
+    @Override
+    public ArticleCursor getCurrentArticle() {
+        return this.currentArticle;
+    }
+
+    @Override
+    public Charset getCurrentCharset() {
+        return this.charset;
+    }
+
+    @Override
+    public Group getCurrentGroup() {
+        return this.currentGroup;
+    }
+
+    @Override
+    public void setCurrentArticle(final ArticleCursor cursor) {
+        this.currentArticle = cursor;
+    }
+
+    @Override
+    public void setCurrentGroup(final Group group) {
+        // The current article number refers to the current group
+        final ArticleCursor cursor = this.currentArticle;
+        if (cursor != null && (group == null
+                || !group.getName().equals(cursor.getGroup()))) {
+            this.currentArticle = null;
+        }
+        this.currentGroup = group;
+    }
+
+    @Override
+    public int getPipelineDepth() {
+        return this.pipelineDepth;
+    }
+
+    @Override
+    public int getMaxPipelineDepth() {
+        return this.maxPipelineDepth;
+    }
+
+    @Override
+    public long getLastActivity() {
+        return this.lastActivity;
+    }
+
+    /**
+     * The lines of a connection are processed one after another, so there is
+     * no need to synchronize this method.
+     *
+     * @param buf
+     * @throws IllegalArgumentException
+     *             if buf is null.
+     */
+    @Override
+    public void lineReceived(ByteBuffer buf) {
+        if (buf == null) {
+            throw new IllegalArgumentException("buf is null");
+        }
+
+        this.lastActivity = System.currentTimeMillis();
+
+        // There might be a trailing \r, but trim() is a bad idea
+        // as it removes also leading spaces from long header lines.
+        int length = buf.remaining();
+        if (length > 0 && buf.get(buf.limit() - 1) == '\r') {
+            length--;
+        }
+
+        // Payload lines are passed on as they are, without decoding them
+        final RawLineCommand rawCommand = command instanceof RawLineCommand
+                && ((RawLineCommand) command).wantsRawLine()
+                ? (RawLineCommand) command : null;
+        final int start = buf.position();
+        String line = null;
+        byte[] raw = null;
+
+        if (rawCommand != null) {
+            buf.limit(start + length);
+            if (Log.get().isLoggable(Level.FINE)) {
+                Log.get().log(Level.FINE, "<< {0}",
+                        this.charset.decode(buf.duplicate()));
+            }
+        } else {
+            // The only copy of the line; the String is decoded from it
+            raw = new byte[length];
+            buf.get(raw);
+            line = new String(raw, this.charset);
+
+            Log.get().log(Level.FINE, "<< {0}", line);
+
+            if (command == null) {
+                command = parseCommandLine(line);
+                assert command != null;
+            }
+        }
+
+        // Publish the complete response at once when the line is processed
+        cork();
+        try {
+            // The command object will process the line we just received
+            try {
+                if (rawCommand != null) {
+                    rawCommand.processRawLine(this, buf);
+                } else {
+                    command.processLine(this, line, raw);
+                }
+            } catch (StorageBackendException ex) {
+                Log.get()
+                        .info("Retry command processing after StorageBackendException");
+
+                // Try it a second time, so that the backend has time to recover
+                if (rawCommand != null) {
+                    buf.position(start);
+                    rawCommand.processRawLine(this, buf);
+                } else {
+                    command.processLine(this, line, raw);
+                }
+            }
+        } catch (ClosedChannelException ex0) {
+            try {
+                StringBuilder strBuf = new StringBuilder();
+                strBuf.append("Connection to ");
+                strBuf.append(channelWrapper.getRemoteAddress());
+                strBuf.append(" closed: ");
+                strBuf.append(ex0);
+                Log.get().info(strBuf.toString());
+            } catch (Exception ex0a) {
+                Log.get().log(Level.INFO, ex0a.getLocalizedMessage(), ex0a);
+            }
+        } catch (IOException ex1) {
+            // This will catch a second StorageBackendException
+            command = null;
+            Log.get().log(Level.WARNING, ex1.getLocalizedMessage(), ex1);
+            println("403 Internal server error");
+
+            // Should we end the connection here?
+            // RFC says we MUST return 400 before closing the connection
+            shutdownInput();
+            shutdownOutput();
+        } finally {
+            uncork();
+        }
+
+        if (command == null || command.hasFinished()) {
+            command = null;
+            charset = Charset.forName("UTF-8"); // Reset to default
+        }
+    }
+
+    /**
+     * Processes all complete lines in the input buffer in the order they were
+     * received. Clients may send many commands without waiting for the
+     * responses (pipelining), the responses to all of them are published to
+     * the writer at once. Processing stops after a command if the client has
+     * not yet received enough of the pending output, the remaining lines are
+     * processed when the caller resumes the connection, see
+     * ChannelLineBuffers.resumeWhenDrained().
+     *
+     * @return Number of commands started.
+     */
+    @Override
+    public int processInput() {
+        int depth = 0;
+        cork();
+        try {
+            lineBuffers.decodeInput();
+            ByteBuffer buf = lineBuffers.nextInputLine();
+            while (buf != null) // Complete line was received
+            {
+                if (command == null) {
+                    depth++;
+                }
+                // The buffer is a view into the input buffer, so it must be
+                // consumed before the next line is retrieved
+                lineReceived(buf);
+
+                // Do not start the next command before a slow client has
+                // received enough of the output, so that the responses to
+                // many pipelined commands are not kept in memory completely
+                if (command == null && lineBuffers.isOutputAboveWatermark()) {
+                    break;
+                }
+
+                // No further input is processed after it was dropped, e.g.
+                // plain text pipelined after STARTTLS
+                buf = lineBuffers.nextInputLine();
+
+                // Compressed input may not have fit into the input buffer
+                if (buf == null && lineBuffers.decodeInput()) {
+                    buf = lineBuffers.nextInputLine();
+                }
+            }
+        } catch (IOException ex) {
+            Log.get().log(Level.WARNING, "NNTPConnection.processInput(): {0}", ex);
+            shutdownInput();
+            shutdownOutput();
+        } finally {
+            uncork();
+        }
+
+        if (depth > 0) {
+            this.pipelineDepth = depth;
+            if (depth > this.maxPipelineDepth) {
+                this.maxPipelineDepth = depth;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * This method determines the fitting command processing class.
+     *
+     * @param line
+     * @return
+     */
+    private Command parseCommandLine(String line) {
+        String cmdStr = line.trim().split("\\s+")[0];
+        CommandSelector csel = context.getBean(CommandSelector.class);
+        return csel.get(cmdStr);
+    }
+
+    /**
+     * Holds back the output until uncork() is called, so that the lines of a
+     * response are published to the writer at once instead of line by line.
+     * Full buffers are still published while the output is corked. Calls
+     * may be nested.
+     */
+    public void cork() {
+        this.corked++;
+    }
+
+    /**
+     * Publishes the output held back since the outermost call of cork().
+     */
+    public void uncork() {
+        assert corked > 0;
+        if (--this.corked == 0) {
+            try {
+                outputEncoded(lineEncoder.flush(), null);
+            } catch (IOException ex) {
+                Log.get().log(Level.INFO, "NNTPConnection.uncork(): {0}", ex);
+                shutdownInput();
+                shutdownOutput();
+            }
+        }
+    }
+
+    /**
+     * Puts the given line into the output buffer, adds a newline character and
+     * returns. The method returns immediately and does not block until the line
+     * was sent, except if the client does not receive the output fast enough.
+     * Each line is terminated by \r\n (NNTPConnection.NEWLINE).
+     *
+     * @param line
+     * @param charset
+     * @throws java.io.IOException
+     */
+    public void println(final CharSequence line, final Charset charset)
+            throws IOException {
+        boolean published = encode(line, charset);
+        published |= encode(NEWLINE, charset);
+        outputEncoded(published, line);
+    }
+
+    /**
+     * Writes the given raw lines to the output buffers and finishes with a
+     * newline character (\r\n).
+     *
+     * @param rawLines
+     * @throws java.io.IOException
+     */
+    @Override
+    public void println(final byte[] rawLines) throws IOException {
+        boolean published = lineEncoder.write(ByteBuffer.wrap(rawLines));
+        published |= encode(NEWLINE, charset);
+        outputEncoded(published, null);
+    }
+
+    /**
+     * Encodes the given characters using the given Charset to the output
+     * buffers of this connection.
+     *
+     * @return true if buffers were published to the ChannelLineBuffers.
+     * @throws java.io.IOException
+     */
+    private boolean encode(CharSequence characters, final Charset charset)
+            throws IOException {
+        if (!charset.canEncode()) {
+            Log.get().log(Level.SEVERE, "FATAL: Charset {0} cannot encode!",
+                    charset);
+            return false;
+        }
+        return lineEncoder.encode(CharBuffer.wrap(characters), charset);
+    }
+
+    /**
+     * Called after output was encoded. If the output is not corked the
+     * current buffer is published, and if any buffer was published the
+     * writer is notified.
+     *
+     * @param published true if the encoder published buffers.
+     * @param debugLine Line to log or null.
+     * @throws java.io.IOException
+     */
+    private void outputEncoded(boolean published, CharSequence debugLine)
+            throws IOException {
+        if (this.corked == 0) {
+            published |= lineEncoder.flush();
+            published |= lineBuffers.flushOutput();
+        }
+
+        if (published) {
+            outputAdded();
+        }
+
+        // Update last activity timestamp
+        this.lastActivity = System.currentTimeMillis();
+        if (debugLine != null) {
+            Log.get().log(Level.FINE, ">> {0}", debugLine);
+        }
+    }
+
+    /**
+     * Called after new output buffers were added to the ChannelLineBuffers of
+     * this connection. Implementations make sure that the buffers are written
+     * to the channel. The calling thread must not wait for the output to be
+     * written; implementations that do not write the buffers before this
+     * method returns suspend the connection between commands instead.
+     *
+     * @throws java.io.IOException
+     */
+    protected abstract void outputAdded() throws IOException;
+
+    @Override
+    public void println(final CharSequence line) {
+        try {
+            println(line, charset);
+        } catch (IOException ex) {
+            Log.get().log(Level.SEVERE, null, ex);
+            shutdownInput();
+            shutdownOutput();
+        }
+    }
+
+    @Override
+    public void startCompression() throws IOException {
+        // The response to COMPRESS is the last uncompressed output
+        if (lineEncoder.flush()) {
+            outputAdded();
+        }
+        lineBuffers.startCompression();
+    }
+
+    @Override
+    public void startTls() throws IOException {
+        final SSLEngine engine = TlsContext.createEngine();
+        if (engine == null) {
+            throw new IOException("TLS is not available");
+        }
+        // The response to STARTTLS is the last plain text output
+        if (lineEncoder.flush()) {
+            outputAdded();
+        }
+        try {
+            lineBuffers.startTls(engine);
+        } catch (ProtocolException ex) {
+            // The client did not wait for the response; the pipelined
+            // commands were dropped and the connection is closed
+            Log.get().log(Level.WARNING, "NNTPConnection.startTls(): {0}", ex);
+            shutdownInput();
+            shutdownOutput();
+        }
+    }
+
+    @Override
+    public void print(final ByteBuffer buffer) throws IOException {
+        outputEncoded(lineEncoder.write(buffer), null);
+    }
+
+    @Override
+    public void printMapped(final ByteBuffer buffer) throws IOException {
+        // The encoded output must be queued before the buffer
+        lineEncoder.flush();
+        lineBuffers.addMappedOutputBuffer(buffer);
+        outputEncoded(true, null);
+    }
+
+    public void print(final String line) throws IOException {
+        outputEncoded(encode(line, charset), line);
+    }
+
+    public void setCurrentCharset(final Charset charset) {
+        this.charset = charset;
+    }
+
+    @Override
+    public void setLastActivity(long timestamp) {
+        this.lastActivity = timestamp;
+    }
+
+    /**
+     * @return Currently logged user (but you should check
+     *         {@link User#isAuthenticated()}, if user is athenticated, or we
+     *         just trust him)
+     */
+    @Override
+    public User getUser() {
+        return user;
+    }
+
+    /**
+     * This method is to be called from AUTHINFO USER Command implementation.
+     *
+     * @param user username from AUTHINFO USER username.
+     */
+    @Override
+    public void setUser(User user) {
+        this.user = user;
+    }
+
+    @Override
+    public void close() throws IOException {
+        shutdownInput();
+        shutdownOutput();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon;
+
+import org.sonews.storage.Article;
+import org.sonews.storage.Group;
+import org.sonews.storage.StorageBackendException;
+import org.sonews.storage.StorageManager;
+
+/**
+ * The current article of a connection. Only the group, the article number
+ * and the Message-ID are kept between the commands, not the article itself,
+ * so that an idle connection does not hold any article data in the heap.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public final class ArticleCursor {
+
+    private final String group;
+    private final long number;
+    private final String messageID;
+
+    /**
+     * @param group     Name of the group the number refers to.
+     * @param number    Number of the article in the group.
+     * @param messageID Message-ID of the article.
+     */
+    public ArticleCursor(String group, long number, String messageID) {
+        this.group = group;
+        this.number = number;
+        this.messageID = messageID;
+    }
+
+    /**
+     * Creates a cursor for the given article in the given group.
+     *
+     * @param group
+     * @param number
+     * @param article
+     * @return The new cursor.
+     */
+    public static ArticleCursor of(Group group, long number, Article article) {
+        return new ArticleCursor(group.getName(), number, article.getMessageID());
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public String getMessageID() {
+        return messageID;
+    }
+
+    /**
+     * Loads the article from the storage.
+     *
+     * @return The article or null if it was deleted meanwhile.
+     * @throws StorageBackendException
+     */
+    public Article load() throws StorageBackendException {
+        return StorageManager.current().getArticle(messageID);
+    }
+}
@@ -45,6 +45,16 @@ class AsyncSocketChannelWrapper
         return this.channel.getRemoteAddress();
     }
 
+    @Override
+    public void shutdownInput() throws IOException {
+        this.channel.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        this.channel.shutdownOutput();
+    }
+
     @Override
     public Object getWrapier() {
         return this.channel;
@@ -0,0 +1,282 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.sonews.config.Config;
+
+/**
+ * Pool of direct ByteBuffers in several size classes. Every DaemonThread has
+ * a small cache of its own; buffers that do not fit into that cache are
+ * passed around via a lock-free stack shared by all threads. The amount of
+ * direct memory allocated by the pool is limited, if the limit is reached
+ * the pool hands out ordinary heap buffers that are not recycled.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public final class BufferPool {
+
+    /** Capacities of the pooled buffers */
+    static final int[] SIZE_CLASSES = { 512, 4096, 65536 };
+
+    /** Number of buffers of each size class cached per thread */
+    private static final int[] THREAD_CACHE_SIZES = { 64, 16, 2 };
+
+    private static final BufferPool instance = new BufferPool(
+            Config.inst().get(Config.BUFFERS_MAXDIRECT, 64 * 1024L) * 1024L);
+
+    /**
+     * @return Shared BufferPool instance.
+     */
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Lock-free stack (Treiber stack) of free buffers of one size class.
+     */
+    private static final class SharedStack {
+
+        private static final class Node {
+            final ByteBuffer buffer;
+            Node next;
+
+            Node(ByteBuffer buffer) {
+                this.buffer = buffer;
+            }
+        }
+
+        private final AtomicReference<Node> head = new AtomicReference<>();
+
+        void push(ByteBuffer buffer) {
+            Node node = new Node(buffer);
+            do {
+                node.next = head.get();
+            } while (!head.compareAndSet(node.next, node));
+        }
+
+        ByteBuffer pop() {
+            Node node;
+            do {
+                node = head.get();
+                if (node == null) {
+                    return null;
+                }
+            } while (!head.compareAndSet(node, node.next));
+            return node.buffer;
+        }
+    }
+
+    private final long maxDirectMemory;
+    private final AtomicLong directMemory = new AtomicLong();
+    private final SharedStack[] sharedStacks = new SharedStack[SIZE_CLASSES.length];
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches =
+            ThreadLocal.withInitial(BufferPool::newThreadCache);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder heapAllocations = new LongAdder();
+
+    /**
+     * @param maxDirectMemory Maximum number of bytes allocated as direct
+     *                        buffers by this pool.
+     */
+    BufferPool(long maxDirectMemory) {
+        this.maxDirectMemory = maxDirectMemory;
+        for (int n = 0; n < sharedStacks.length; n++) {
+            sharedStacks[n] = new SharedStack();
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<ByteBuffer>[] newThreadCache() {
+        ArrayDeque<ByteBuffer>[] cache = new ArrayDeque[SIZE_CLASSES.length];
+        for (int n = 0; n < cache.length; n++) {
+            cache[n] = new ArrayDeque<>(THREAD_CACHE_SIZES[n]);
+        }
+        return cache;
+    }
+
+    /**
+     * Only long living sonews threads get a buffer cache; other threads
+     * would take the cached buffers with them when they die.
+     */
+    private static boolean hasThreadCache() {
+        return Thread.currentThread() instanceof DaemonThread;
+    }
+
+    private static int sizeClass(int size) {
+        for (int n = 0; n < SIZE_CLASSES.length; n++) {
+            if (size <= SIZE_CLASSES[n]) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a cleared buffer with a capacity of at least the given size.
+     * Use release() to return the buffer to the pool when it is no longer
+     * used.
+     *
+     * @param size Minimum capacity of the buffer.
+     * @return A direct buffer if possible, otherwise a heap buffer.
+     */
+    public ByteBuffer acquire(int size) {
+        final int sc = sizeClass(size);
+        if (sc < 0) {
+            // Larger than the largest size class; not pooled
+            heapAllocations.increment();
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = null;
+        if (hasThreadCache()) {
+            buffer = threadCaches.get()[sc].pollFirst();
+        }
+        if (buffer == null) {
+            buffer = sharedStacks[sc].pop();
+        }
+
+        if (buffer != null) {
+            hits.increment();
+            return buffer;
+        }
+
+        misses.increment();
+        return allocate(sc);
+    }
+
+    private ByteBuffer allocate(int sc) {
+        final int capacity = SIZE_CLASSES[sc];
+        if (directMemory.addAndGet(capacity) > maxDirectMemory) {
+            directMemory.addAndGet(-capacity);
+            heapAllocations.increment();
+            return ByteBuffer.allocate(capacity);
+        }
+
+        allocations.increment();
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Allocates the given number of direct buffers of the size class that
+     * fits the given size and puts them into the shared stack. Should be
+     * called at startup only.
+     *
+     * @param size
+     * @param count
+     */
+    public void preallocate(int size, int count) {
+        final int sc = sizeClass(size);
+        if (sc < 0) {
+            throw new IllegalArgumentException("No size class for " + size);
+        }
+
+        for (int n = 0; n < count; n++) {
+            ByteBuffer buffer = allocate(sc);
+            if (!buffer.isDirect()) {
+                break; // Direct memory limit reached
+            }
+            sharedStacks[sc].push(buffer);
+        }
+    }
+
+    /**
+     * Returns the given buffer to the pool. Heap buffers, read-only views and
+     * buffers not allocated by this pool are ignored.
+     *
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.isReadOnly()) {
+            return;
+        }
+
+        final int sc = sizeClass(buffer.capacity());
+        if (sc < 0 || SIZE_CLASSES[sc] != buffer.capacity()) {
+            return;
+        }
+
+        buffer.clear(); // Set position to 0 and limit to capacity
+        if (hasThreadCache()) {
+            ArrayDeque<ByteBuffer> cache = threadCaches.get()[sc];
+            if (cache.size() < THREAD_CACHE_SIZES[sc]) {
+                cache.addFirst(buffer);
+                return;
+            }
+        }
+        sharedStacks[sc].push(buffer);
+    }
+
+    /**
+     * @return Number of requests served with a recycled buffer.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of requests no recycled buffer was available for.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Number of direct buffers allocated by this pool.
+     */
+    public long getAllocations() {
+        return allocations.sum();
+    }
+
+    /**
+     * @return Number of unpooled heap buffers handed out, either because the
+     *         direct memory limit was reached or the requested size was too
+     *         large.
+     */
+    public long getHeapAllocations() {
+        return heapAllocations.sum();
+    }
+
+    /**
+     * @return Number of bytes allocated as direct buffers.
+     */
+    public long getDirectMemory() {
+        return directMemory.get();
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = getHits();
+        long requests = hitCount + getMisses();
+        return "BufferPool: " + requests + " requests, "
+                + (requests == 0 ? 100 : hitCount * 100 / requests) + "% hits, "
+                + getAllocations() + " direct and " + getHeapAllocations()
+                + " heap allocations, " + getDirectMemory() / 1024 + " of "
+                + maxDirectMemory / 1024 + " KiB direct memory used";
+    }
+}
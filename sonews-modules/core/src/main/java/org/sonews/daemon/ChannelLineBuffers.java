@@ -18,10 +18,24 @@
 
 package org.sonews.daemon;
 
+import java.io.IOException;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+import org.sonews.config.Config;
 
 /**
  * Class holding ByteBuffers for SocketChannels/NNTPConnection. Due to the
@@ -38,36 +52,90 @@ public class ChannelLineBuffers {
      * standard line.
      */
     public static final int BUFFER_SIZE = 512;
-    private static final int maxCachedBuffers = 2048; // Cached buffers maximum
-    private static final List<ByteBuffer> freeSmallBuffers = new ArrayList<>(
-            maxCachedBuffers);
+    /**
+     * Size of the largest input buffer and therefore the maximum length of a
+     * received line.
+     */
+    public static final int MAX_INPUT_SIZE =
+            BufferPool.SIZE_CLASSES[BufferPool.SIZE_CLASSES.length - 1];
+    private static final int maxCachedBuffers = 2048; // Preallocated buffers
+    /** Maximum number of buffers passed to one gathering write */
+    private static final int maxGatherBuffers = 1024;
+    private static final ByteBuffer[] noBuffers = new ByteBuffer[0];
+
+    private static final long highWatermark = Config.inst().get(
+            Config.OUTPUT_HIGHWATERMARK, 256L) * 1024L;
+    private static final long lowWatermark = Config.inst().get(
+            Config.OUTPUT_LOWWATERMARK, 64L) * 1024L;
+    private static final long maxOutputMemory = Config.inst().get(
+            Config.OUTPUT_MAXMEMORY, 64 * 1024L) * 1024L;
+    /** Pending output bytes of all ChannelLineBuffers */
+    private static final AtomicLong totalOutputBytes = new AtomicLong();
 
     /**
-     * Allocates a predefined number of direct ByteBuffers (allocated via
-     * ByteBuffer.allocateDirect()). This method is Thread-safe, but should only
-     * called at startup.
+     * @return Number of bytes pending to be written to all clients.
+     */
+    public static long getTotalOutputBytes() {
+        return totalOutputBytes.get();
+    }
+
+    /**
+     * Allocates a predefined number of direct ByteBuffers in the BufferPool.
+     * This method is Thread-safe, but should only called at startup.
      */
     public static void allocateDirect() {
-        synchronized (freeSmallBuffers) {
-            for (int n = 0; n < maxCachedBuffers; n++) {
-                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-                freeSmallBuffers.add(buffer);
-            }
-        }
+        BufferPool.getInstance().preallocate(BUFFER_SIZE, maxCachedBuffers);
     }
 
-    // Both input and output buffers should be final as we synchronize on them,
-    // but the buffers are set somewhere to another object or null. 
-    private ByteBuffer inputBuffer = newLineBuffer();
-    private final List<ByteBuffer> outputBuffers = new ArrayList<>();
+    // The input buffer is only attached while input is pending and replaced
+    // or set to null, so we synchronize on a separate lock object.
+    private final Object inputLock = new Object();
+    /** Input buffer, null if no input is pending */
+    private ByteBuffer inputBuffer = null;
+    /** true if the buffers were recycled */
+    private boolean inputClosed = false;
+    /** Index of the first byte in inputBuffer not yet returned as line */
+    private int inputMark = 0;
+    /** Bytes between inputMark and this index contain no line terminator */
+    private int inputScan = 0;
+    /** Index into BufferPool.SIZE_CLASSES of the next input buffer */
+    private int inputSizeClass = 0;
+    private final Deque<ByteBuffer> outputBuffers = new ArrayDeque<>();
     private boolean outputBuffersClosed = false;
+    /** Queued buffers of mapped files, guarded by outputBuffers */
+    private final Set<ByteBuffer> mappedBuffers =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    /** Bytes of the buffers in outputBuffers, guarded by outputBuffers */
+    private long outputBytes = 0;
+    private final long high;
+    private final long low;
+    /** Run when the output falls to the low water mark, guarded by outputBuffers */
+    private Runnable drainedAction;
+    /** Compression of the connection, null if not negotiated */
+    private volatile DeflateCodec codec;
+    /** Compressed input, only used if codec is not null */
+    private ByteBuffer rawInput;
+    /** Encryption of the connection, null if TLS is not active */
+    private volatile TlsCodec tls;
 
     public ChannelLineBuffers() {
+        this(highWatermark, lowWatermark);
+    }
+
+    /**
+     * @param high Pending output bytes above which the connection suspends.
+     * @param low  Pending output bytes below which the connection resumes.
+     */
+    ChannelLineBuffers(long high, long low) {
+        this.high = high;
+        this.low = Math.min(low, high);
     }
 
     /**
      * Add the given ByteBuffer to the list of buffers to be send to the client.
-     * This method is Thread-safe.
+     * If compression is active the buffer is compressed and recycled instead;
+     * the compressed data is queued when flushOutput() is called. This method
+     * is Thread-safe.
      *
      * @param buffer
      * @throws java.nio.channels.ClosedChannelException
@@ -75,22 +143,324 @@ public class ChannelLineBuffers {
      */
     public void addOutputBuffer(ByteBuffer buffer)
             throws ClosedChannelException {
+        final DeflateCodec deflate = this.codec;
+        if (deflate != null) {
+            deflate.deflate(buffer, this);
+        } else {
+            queueOutputBuffer(buffer);
+        }
+    }
+
+    /**
+     * Adds the given buffer of a memory mapped file to the list of buffers
+     * to be send to the client. Unless compression or TLS is active the
+     * buffer is written as it is; it does not occupy heap or direct memory,
+     * so it is not counted for the water marks. This method is Thread-safe.
+     *
+     * @param buffer
+     * @throws java.nio.channels.ClosedChannelException
+     *             If the client channel was already closed.
+     */
+    public void addMappedOutputBuffer(ByteBuffer buffer)
+            throws ClosedChannelException {
+        if (this.codec != null || this.tls != null) {
+            // The compressed or encrypted copy occupies memory
+            addOutputBuffer(buffer);
+        } else {
+            enqueueOutput(buffer, true);
+        }
+    }
+
+    /**
+     * Queues the given buffer for writing without compressing it. If TLS is
+     * active the buffer is encrypted first.
+     */
+    void queueOutputBuffer(ByteBuffer buffer) throws ClosedChannelException {
+        final TlsCodec codec = this.tls;
+        if (codec != null) {
+            codec.write(buffer, this);
+        } else {
+            enqueueOutput(buffer);
+        }
+    }
+
+    /**
+     * Queues the given buffer for writing as it is.
+     */
+    void enqueueOutput(ByteBuffer buffer) throws ClosedChannelException {
+        enqueueOutput(buffer, false);
+    }
+
+    private void enqueueOutput(ByteBuffer buffer, boolean mapped)
+            throws ClosedChannelException {
+        final long bytes = mapped ? 0 : buffer.limit();
         synchronized(outputBuffers) {
             if (outputBuffersClosed) {
                 throw new ClosedChannelException();
             }
             outputBuffers.add(buffer);
+            if (mapped) {
+                mappedBuffers.add(buffer);
+            }
+            outputBytes += bytes;
+        }
+        totalOutputBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Mapped buffers of spool files do not occupy heap or direct memory, so
+     * they are not counted for the water marks. Caller must hold the
+     * outputBuffers lock.
+     *
+     * @return Memory occupied by the given output buffer, which was removed
+     *         from the queue.
+     */
+    private long dequeued(ByteBuffer buffer) {
+        return mappedBuffers.remove(buffer) ? 0 : buffer.limit();
+    }
+
+    /**
+     * Must be called at the end of a response. If compression or TLS is
+     * active all output compressed or encrypted so far is queued for writing.
+     *
+     * @return true if buffers were queued.
+     * @throws ClosedChannelException
+     */
+    public boolean flushOutput() throws ClosedChannelException {
+        final DeflateCodec deflate = this.codec;
+        final TlsCodec encrypt = this.tls;
+        boolean queued = deflate != null && deflate.flush(this);
+        if (encrypt != null) {
+            // Compressed output was passed to the TLS layer
+            queued = encrypt.flush(this);
+        }
+        return queued;
+    }
+
+    /**
+     * Activates TLS using the given engine. All data added and read after
+     * this call is encrypted; output added during the handshake is sent
+     * when the handshake has finished. TLS must be started before the
+     * compression.
+     *
+     * Input received in plain text after the STARTTLS command must not be
+     * processed as if it was received encrypted (RFC 4642, see
+     * CVE-2011-0411). If there is such input, it is dropped, no further
+     * input is accepted and TLS is not started.
+     *
+     * @param engine Server side SSLEngine.
+     * @throws SSLException If the handshake could not be started.
+     * @throws ProtocolException If there is pending plain text input.
+     */
+    public void startTls(SSLEngine engine) throws IOException {
+        synchronized (inputLock) {
+            if (this.tls != null || this.codec != null) {
+                throw new IllegalStateException("TLS or compression already active");
+            }
+            if (inputBuffer != null && inputMark < inputBuffer.position()) {
+                recycleBuffer(inputBuffer);
+                inputBuffer = null;
+                inputClosed = true;
+                throw new ProtocolException("Plain text input after STARTTLS");
+            }
+            this.tls = new TlsCodec(engine);
+        }
+    }
+
+    /**
+     * @return true if TLS is active.
+     */
+    public boolean isTls() {
+        return this.tls != null;
+    }
+
+    /**
+     * Activates the compression of input and output (COMPRESS DEFLATE). Data
+     * added and read after this call is compressed.
+     */
+    public void startCompression() {
+        synchronized (inputLock) {
+            this.rawInput = ByteBuffer.allocate(BUFFER_SIZE);
+            this.codec = new DeflateCodec();
+        }
+    }
+
+    /**
+     * @return true if the compression is active.
+     */
+    public boolean isCompressed() {
+        return this.codec != null;
+    }
+
+    /**
+     * Returns the buffer the data received from the channel must be read
+     * into. This is the input buffer unless compression or TLS is active;
+     * then the data is decrypted and decompressed to the input buffer by
+     * decodeInput().
+     *
+     * @return Buffer in write mode or null if the buffers were recycled.
+     */
+    public ByteBuffer getReadBuffer() {
+        synchronized (inputLock) {
+            if (inputClosed) {
+                return null;
+            } else if (tls != null) {
+                return tls.getNetInput();
+            } else {
+                return codec != null ? rawInput : attachInputBuffer();
+            }
+        }
+    }
+
+    /**
+     * Takes an input buffer from the pool if there is none attached. Caller
+     * must hold the inputLock.
+     */
+    private ByteBuffer attachInputBuffer() {
+        if (inputBuffer == null) {
+            inputBuffer = BufferPool.getInstance().acquire(
+                    BufferPool.SIZE_CLASSES[inputSizeClass]);
+            inputMark = 0;
+            inputScan = 0;
+        }
+        return inputBuffer;
+    }
+
+    /**
+     * Returns the input buffers to the pool if they contain no pending
+     * input. Should be called before a connection waits for new input, so
+     * that idle connections do not occupy any buffers. Caller must hold the
+     * inputLock.
+     */
+    private void detachIdleInput() {
+        if (inputBuffer != null && inputBuffer.position() == 0) {
+            recycleBuffer(inputBuffer);
+            inputBuffer = null;
+        }
+        final TlsCodec decrypt = this.tls;
+        if (decrypt != null) {
+            decrypt.releaseIdleInput();
+        }
+    }
+
+    /**
+     * Returns the input buffers to the pool if they contain no pending
+     * input. A connection should call this method before it waits for new
+     * input, so that idle connections do not occupy any buffers; the
+     * buffers are taken from the pool again by getReadBuffer().
+     */
+    public void releaseIdleInput() {
+        synchronized (inputLock) {
+            detachIdleInput();
+        }
+    }
+
+    /**
+     * @return true if an input buffer is attached.
+     */
+    boolean hasInputBuffer() {
+        synchronized (inputLock) {
+            return inputBuffer != null;
+        }
+    }
+
+    /**
+     * Decrypts and decompresses received data into the input buffer as far
+     * as there is space left. If TLS is active this also drives the TLS
+     * handshake, so the method must be called after every read even if no
+     * input is expected; handshake messages are queued for writing and
+     * reported by the next flushOutput().
+     *
+     * @return true if new data was written to the input buffer.
+     * @throws IOException If the input could not be decrypted or
+     *                     decompressed.
+     */
+    public boolean decodeInput() throws IOException {
+        synchronized (inputLock) {
+            final TlsCodec decrypt = this.tls;
+            final DeflateCodec inflate = this.codec;
+            if (inputClosed || decrypt == null && inflate == null) {
+                return false;
+            }
+
+            final ByteBuffer inputBuffer = attachInputBuffer();
+            final int start = inputBuffer.position();
+            boolean progress = true;
+            while (progress && inputBuffer.hasRemaining()) {
+                progress = false;
+                if (decrypt != null) {
+                    decrypt.unwrap(this);
+                    progress = decrypt.transferInput(
+                            inflate != null ? rawInput : inputBuffer);
+                }
+                if (inflate != null && rawInput.position() > 0) {
+                    rawInput.flip();
+                    progress |= inflate.inflate(rawInput, inputBuffer);
+                }
+            }
+            if (inputBuffer.position() > start) {
+                return true;
+            }
+            detachIdleInput();
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the connection should stop processing commands until
+     * the client has received some of the output: either the pending output
+     * of this connection exceeds the high water mark, or the pending output
+     * of all connections exceeds the global budget and this connection is
+     * above its low water mark.
+     *
+     * @return true if resumeWhenDrained() would suspend the connection.
+     */
+    public boolean isOutputAboveWatermark() {
+        synchronized (outputBuffers) {
+            return outputBytes > high || (outputBytes > low
+                    && totalOutputBytes.get() > maxOutputMemory);
+        }
+    }
+
+    /**
+     * Suspends the connection if isOutputAboveWatermark() is true: the given
+     * action is run once by the thread writing the output as soon as the
+     * pending output was written down to the low water mark. The caller
+     * must neither process further commands nor read from the channel until
+     * the action is run, so that no thread waits for a slow client and
+     * large amounts of output are not kept in memory. The action is dropped
+     * if the buffers are recycled.
+     *
+     * @param action Resumes the processing of the connection.
+     * @return true if the connection was suspended, false if the caller can
+     *         go on.
+     */
+    public boolean resumeWhenDrained(Runnable action) {
+        synchronized (outputBuffers) {
+            if (outputBuffersClosed) {
+                return true; // The connection is closed, nothing to resume
+            } else if (!isOutputAboveWatermark()) {
+                return false;
+            }
+            drainedAction = action;
+            return true;
         }
     }
 
     /**
      * Currently a channel has only one input buffer. This *may* be a bottleneck
-     * and should investigated in the future.
+     * and should investigated in the future. The buffer is in write mode; the
+     * complete lines are retrieved using nextInputLine(). The buffer is only
+     * attached while input is pending; it is taken from the pool if
+     * necessary.
      *
-     * @return The input buffer associated with given channel.
+     * @return The input buffer associated with given channel or null if the
+     *         buffers were recycled.
      */
     public ByteBuffer getInputBuffer() {
-        return inputBuffer;
+        synchronized (inputLock) {
+            return inputClosed ? null : attachInputBuffer();
+        }
     }
 
     /**
@@ -101,154 +471,245 @@ public class ChannelLineBuffers {
      *         buffers.
      */
     public ByteBuffer getOutputBuffer() {
+        ByteBuffer buffer;
+        Runnable drained = null;
         synchronized (outputBuffers) {
-            if (outputBuffers.isEmpty()) {
-                return null;
-            } else {
-                ByteBuffer buffer = outputBuffers.get(0);
-                if (buffer.remaining() == 0) {
-                    outputBuffers.remove(0);
-                    // Add old buffers to the list of free buffers
-                    recycleBuffer(buffer);
-                    buffer = getOutputBuffer();
-                }
-                return buffer;
+            long bytes = 0;
+            while ((buffer = outputBuffers.peekFirst()) != null
+                    && buffer.remaining() == 0) {
+                outputBuffers.removeFirst();
+                bytes += dequeued(buffer);
+                // Add old buffers to the list of free buffers
+                recycleBuffer(buffer);
             }
+            drained = outputWritten(bytes);
         }
+        if (drained != null) {
+            drained.run();
+        }
+        return buffer;
     }
 
     /**
-     * @return false if there are output buffers pending to be written to the
-     *         client.
+     * Returns the pending output buffers for a gathering write to the
+     * SocketChannel. Only the writer thread may remove buffers from the
+     * output queue, so the returned buffers stay valid until
+     * recycleWrittenBuffers() is called by the same thread.
+     *
+     * @return Array of pending buffers, may be empty but never null.
      */
-    boolean isOutputBufferEmpty() {
+    public ByteBuffer[] getOutputBuffers() {
         synchronized (outputBuffers) {
-            return outputBuffers.isEmpty();
+            int num = Math.min(outputBuffers.size(), maxGatherBuffers);
+            if (num == 0) {
+                return noBuffers;
+            }
+
+            ByteBuffer[] buffers = new ByteBuffer[num];
+            Iterator<ByteBuffer> it = outputBuffers.iterator();
+            for (int n = 0; n < num; n++) {
+                buffers[n] = it.next();
+            }
+            return buffers;
+        }
+    }
+
+    /**
+     * Removes all completely written buffers from the head of the output
+     * queue and recycles them.
+     */
+    public void recycleWrittenBuffers() {
+        List<ByteBuffer> written = new ArrayList<>();
+        Runnable drained;
+        synchronized (outputBuffers) {
+            long bytes = 0;
+            while (!outputBuffers.isEmpty()
+                    && !outputBuffers.peekFirst().hasRemaining()) {
+                ByteBuffer buffer = outputBuffers.removeFirst();
+                bytes += dequeued(buffer);
+                written.add(buffer);
+            }
+            drained = outputWritten(bytes);
+        }
+        written.forEach(ChannelLineBuffers::recycleBuffer);
+        if (drained != null) {
+            drained.run();
         }
     }
 
     /**
-     * Goes through the input buffer and searches for next line terminator. 
-     * If a '\n' is found, the bytes up to the line terminator
-     * are returned as array of bytes (the line terminator is omitted). If none
-     * is found the method returns null.
+     * Updates the pending output counters. Caller must hold the
+     * outputBuffers lock and run the returned action after releasing it.
      *
-     * @return A ByteBuffer wrapping the line.
+     * @return The action resuming the suspended connection if the low water
+     *         mark was reached, otherwise null.
      */
-    public ByteBuffer nextInputLine() {
-        if (inputBuffer == null) {
+    private Runnable outputWritten(long bytes) {
+        if (bytes == 0) {
             return null;
         }
-        
-        // Synchronization on non-final field inputBuffer is probably okay
-        synchronized(inputBuffer) {
-            ByteBuffer buffer = inputBuffer;
-
-            // Mark the current write position
-            int mark = buffer.position();
-
-            // Set position to 0 and limit to current position
-            buffer.flip();
-
-            ByteBuffer lineBuffer = newLineBuffer();
-
-            while (buffer.position() < buffer.limit()) {
-                byte b = buffer.get();
-                if (b == 10) // '\n'
-                {
-                    // The bytes between the buffer's current position and its
-                    // limit, if any, are copied to the beginning of the buffer.
-                    // That is, the byte at index p = position() is copied to
-                    // index zero, the byte at index p + 1 is copied to index
-                    // one, and so forth until the byte at index limit() - 1
-                    // is copied to index n = limit() - 1 - p.
-                    // The buffer's position is then set to n+1 and its limit is
-                    // set to its capacity.
-                    buffer.compact();
-
-                    lineBuffer.flip(); // limit to position, position to 0
-                    return lineBuffer;
-                } else {
-                    lineBuffer.put(b);
-                }
-            }
-
-            buffer.limit(BUFFER_SIZE);
-            buffer.position(mark);
+        outputBytes -= bytes;
+        totalOutputBytes.addAndGet(-bytes);
+        Runnable drained = null;
+        if (outputBytes <= low) {
+            drained = drainedAction;
+            drainedAction = null;
+        }
+        return drained;
+    }
 
-            if (buffer.hasRemaining()) {
-                return null;
-            } else {
-                // In the first 512 was no newline found, so the input is not
-                // standard compliant. We return the current buffer as new line
-                // and add a space to the beginning of the next line which
-                // corrects some overlong header lines.
-                inputBuffer = newLineBuffer();
-                inputBuffer.put((byte) ' ');
-                buffer.flip();
-                return buffer;
-            }
+    /**
+     * @return Number of bytes pending to be written to the client.
+     */
+    public long getOutputBytes() {
+        synchronized (outputBuffers) {
+            return outputBytes;
         }
     }
 
     /**
-     * Returns a at least 512 bytes long ByteBuffer ready for usage. The method
-     * first try to reuse an already allocated (cached) buffer but if that fails
-     * returns a newly allocated direct buffer. Use recycleBuffer() method when
-     * you do not longer use the allocated buffer.
+     * @return Number of output buffers pending to be written to the client.
      */
-    static ByteBuffer newLineBuffer() {
-        ByteBuffer buf = null;
-        synchronized (freeSmallBuffers) {
-            if (!freeSmallBuffers.isEmpty()) {
-                buf = freeSmallBuffers.remove(0);
-            }
+    public int getOutputBufferCount() {
+        synchronized (outputBuffers) {
+            return outputBuffers.size();
         }
+    }
 
-        if (buf == null) {
-            // Allocate a non-direct buffer
-            buf = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * @return false if there are output buffers pending to be written to the
+     *         client.
+     */
+    public boolean isOutputBufferEmpty() {
+        synchronized (outputBuffers) {
+            return outputBuffers.isEmpty();
         }
+    }
+
+    /**
+     * Goes through the input buffer and searches for next line terminator.
+     * If a '\n' is found, a read-only view of the input buffer is returned
+     * which is positioned at the first byte of the line and limited at the
+     * line terminator (the terminator itself is omitted). The bytes are not
+     * copied, so the returned buffer is only valid until the next call of
+     * this method. If no complete line is available the method returns null.
+     *
+     * The size of the input buffer adapts to the client: if the client filled
+     * the buffer, e.g. while it is sending an article, the next buffer is
+     * taken from a larger size class; once the client sends single commands
+     * again the buffer shrinks back to BUFFER_SIZE. A line that does not fit
+     * into the buffer is moved to a larger one, up to MAX_INPUT_SIZE.
+     *
+     * @return A ByteBuffer wrapping the line.
+     * @throws IOException If a line is longer than MAX_INPUT_SIZE.
+     */
+    public ByteBuffer nextInputLine() throws IOException {
+        synchronized (inputLock) {
+            if (inputBuffer == null || inputClosed) {
+                return null;
+            }
+
+            final ByteBuffer buffer = inputBuffer;
+            final int end = buffer.position();
+
+            int lf = LineScanner.indexOfLF(buffer, inputScan, end);
+            if (lf >= 0) {
+                ByteBuffer line = buffer.asReadOnlyBuffer();
+                line.limit(lf);
+                line.position(inputMark);
+                inputMark = lf + 1;
+                inputScan = inputMark;
+                return line;
+            }
 
-        assert buf.position() == 0;
-        assert buf.limit() >= BUFFER_SIZE;
+            // Bytes up to the current write position contain no line
+            // terminator, so there is no need to scan them again.
+            inputScan = end;
 
-        return buf;
+            // A full buffer means the client sends faster than we read
+            final boolean full = end == buffer.capacity();
+            final int maxSizeClass = BufferPool.SIZE_CLASSES.length - 1;
+            if (full && inputSizeClass < maxSizeClass) {
+                inputSizeClass++;
+            } else if (!full && inputSizeClass > 0
+                    && end <= BufferPool.SIZE_CLASSES[inputSizeClass - 1]) {
+                inputSizeClass--;
+            }
+
+            if (inputMark == end) {
+                // Every line was consumed, return the buffer to the pool
+                recycleBuffer(buffer);
+                inputBuffer = null;
+                inputMark = 0;
+                inputScan = 0;
+            } else if (BufferPool.SIZE_CLASSES[inputSizeClass] > buffer.capacity()) {
+                // Move the incomplete line to a larger buffer
+                ByteBuffer larger = BufferPool.getInstance().acquire(
+                        BufferPool.SIZE_CLASSES[inputSizeClass]);
+                buffer.limit(end);
+                buffer.position(inputMark);
+                larger.put(buffer);
+                recycleBuffer(buffer);
+                inputBuffer = larger;
+                inputScan -= inputMark;
+                inputMark = 0;
+            } else if (inputMark > 0) {
+                // Move the incomplete line to the beginning of the buffer to
+                // make room for the rest of it
+                buffer.limit(end);
+                buffer.position(inputMark);
+                buffer.compact();
+                inputScan -= inputMark;
+                inputMark = 0;
+            } else if (full) {
+                throw new IOException("Line exceeds " + MAX_INPUT_SIZE
+                        + " bytes");
+            }
+            return null;
+        }
     }
 
     /**
-     * Adds the given buffer to the list of free buffers if it is a valuable
-     * direct allocated buffer.
+     * Returns the given buffer to the BufferPool if it is a valuable direct
+     * allocated buffer.
      *
      * @param buffer
      */
     public static void recycleBuffer(ByteBuffer buffer) {
         assert buffer != null;
 
-        if (buffer.isDirect()) {
-            assert buffer.capacity() >= BUFFER_SIZE;
-
-            // Add old buffers to the list of free buffers
-            synchronized (freeSmallBuffers) {
-                buffer.clear(); // Set position to 0 and limit to capacity
-                freeSmallBuffers.add(buffer);
-            }
-        } // if(buffer.isDirect())
+        BufferPool.getInstance().release(buffer);
     }
 
     /**
      * Recycles all buffers of this ChannelLineBuffers object.
      */
     public void recycleBuffers() {
-        synchronized (inputBuffer) {
-            recycleBuffer(inputBuffer);
-            this.inputBuffer = null;
+        synchronized (inputLock) {
+            if (inputBuffer != null) {
+                recycleBuffer(inputBuffer);
+                this.inputBuffer = null;
+            }
+            inputClosed = true;
         }
 
         synchronized (outputBuffers) {
             outputBuffers.forEach(ChannelLineBuffers::recycleBuffer);
             outputBuffers.clear();
+            mappedBuffers.clear();
+            totalOutputBytes.addAndGet(-outputBytes);
+            outputBytes = 0;
             outputBuffersClosed = true;
+            drainedAction = null;
+        }
+
+        final DeflateCodec deflate = this.codec;
+        if (deflate != null) {
+            deflate.end();
+        }
+        final TlsCodec encrypt = this.tls;
+        if (encrypt != null) {
+            encrypt.end();
         }
     }
 }
@@ -54,12 +54,24 @@ public class CommandSelector {
         if (cmd == null) {
             cmd = commandMapping.get("*");
         }
+        if (cmd != null && cmd.isStateful()) {
+            // Prototype scoped commands keep the state of one connection
+            cmd = context.getBean(cmd.getClass());
+        }
         return cmd;
     }
     
     @PostConstruct
     protected void init() {
         Map<String, Command> commands = context.getBeansOfType(Command.class);
+        commands.forEach((name, command) -> {
+            // A stateful singleton would share its state between connections
+            if (command.isStateful() && !context.isPrototype(name)) {
+                throw new IllegalStateException("Stateful command "
+                        + command.getClass().getName()
+                        + " must be prototype scoped");
+            }
+        });
         commands.values().stream().forEach(this::mapCommandStringsToInstance);
     }
 
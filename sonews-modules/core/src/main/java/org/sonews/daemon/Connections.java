@@ -19,20 +19,21 @@
 package org.sonews.daemon;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 import org.sonews.config.Config;
 import org.sonews.util.Log;
+import org.sonews.util.TimingWheel;
 
 /**
- * Daemon thread collecting all NNTPConnection instances. The thread checks
- * periodically if there are stale/timed out connections and removes and purges
- * them properly.
+ * Daemon thread collecting all NNTPConnection instances. The timeouts of the
+ * connections are kept in a hashed timing wheel that is advanced by this
+ * thread; stale/timed out connections are removed and purged properly. The
+ * daemons do not look up connections here; they keep the connection attached
+ * to their SelectionKeys or threads.
  *
  * @author Christian Lins
  * @since sonews/0.5.0
@@ -48,90 +49,135 @@ public final class Connections extends DaemonRunner {
         return Connections.instance;
     }
 
-    private final List<NNTPConnection> connections = new ArrayList<>();
-    private final Map<SocketChannelWrapper, NNTPConnection> connByChannel
-            = new HashMap<>();
+    private final Map<NNTPConnection, TimingWheel.Timeout<Runnable>> connections =
+            new ConcurrentHashMap<>();
+    private final TimingWheel<Runnable> timeouts = new TimingWheel<>(
+            Config.inst().get(Config.TIMEOUT_TICK, 1000), 512,
+            Connections::runExpired);
 
     private Connections() {
     }
 
+    private static void runExpired(List<Runnable> tasks) {
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                Log.get().log(Level.WARNING, "Connections timeout task: {0}", ex);
+            }
+        }
+    }
+
+    private static long getTimeoutMillis() {
+        return 1000L * Config.inst().get(Config.TIMEOUT, 180);
+    }
+
     /**
      * Adds the given NNTPConnection to the Connections management.
      *
      * @param conn
-     * @see org.sonews.daemon.SynchronousNNTPConnection
+     * @see org.sonews.daemon.sync.SynchronousNNTPConnection
      */
     public void add(final NNTPConnection conn) {
-        synchronized (this.connections) {
-            this.connections.add(conn);
-            this.connByChannel.put(conn.getSocketChannel(), conn);
+        this.connections.put(conn, timeouts.schedule(
+                () -> checkTimeout(conn), getTimeoutMillis()));
+    }
+
+    /**
+     * Removes the given NNTPConnection from the Connections management, e.g.
+     * because the connection was closed.
+     *
+     * @param conn
+     */
+    public void remove(final NNTPConnection conn) {
+        TimingWheel.Timeout<Runnable> timeout = this.connections.remove(conn);
+        if (timeout != null) {
+            timeout.cancel();
         }
     }
 
     /**
-     * @param channel
-     * @return NNTPConnection instance that is associated with the given
-     *         SocketChannel.
+     * @return Number of managed connections.
+     */
+    public int size() {
+        return this.connections.size();
+    }
+
+    /**
+     * Runs the given task in the thread of the Connections instance after the
+     * given delay. The task must not block.
+     *
+     * @param task
+     * @param delayMillis
+     * @return The Timeout of the task, can be used to cancel it.
      */
-    public NNTPConnection get(final SocketChannelWrapper channel) {
-        synchronized (this.connections) {
-            return this.connByChannel.get(channel);
+    public TimingWheel.Timeout<Runnable> schedule(final Runnable task,
+            final long delayMillis) {
+        return timeouts.schedule(task, delayMillis);
+    }
+
+    /**
+     * Called when the timeout of a connection expired. Connections are not
+     * re-armed on every activity; instead the last activity timestamp is
+     * checked here and the timeout is scheduled again if the connection was
+     * active in the meantime.
+     *
+     * @param conn
+     */
+    private void checkTimeout(final NNTPConnection conn) {
+        final long timeoutMillis = getTimeoutMillis();
+        final long idle = System.currentTimeMillis() - conn.getLastActivity();
+
+        if (idle <= timeoutMillis || !conn.getBuffers().isOutputBufferEmpty()) {
+            long delay = Math.max(timeouts.getTickMillis(), timeoutMillis - idle);
+            TimingWheel.Timeout<Runnable> rearmed = this.connections
+                    .computeIfPresent(conn, (c, old) -> timeouts.schedule(
+                            () -> checkTimeout(conn), delay));
+            if (rearmed == null) {
+                Log.get().log(Level.FINE, "Connection was removed: {0}", conn);
+            }
+            return;
         }
+
+        if (this.connections.remove(conn) == null) {
+            return; // Was removed in the meantime
+        }
+
+        // A connection timeout has occurred so purge the connection
+        SocketChannelWrapper channel = conn.getSocketChannel();
+        try {
+            assert channel != null;
+
+            // Close the channel; implicitely cancels all selectionkeys
+            Log.get().log(
+                    Level.INFO,
+                    "Disconnected: {0} (timeout)",
+                    channel.getRemoteAddress());
+            channel.close();
+        } catch (IOException ex) {
+            Log.get().log(Level.WARNING, "Connections.run(): {0}", ex);
+        }
+
+        // Recycle the used buffers
+        conn.getBuffers().recycleBuffers();
     }
 
     /**
-     * Run loops. Checks periodically for timed out connections and purged them
-     * from the lists.
+     * Run loop. Advances the timing wheel every tick, which purges the timed
+     * out connections and runs the scheduled tasks.
      */
     @Override
     public void run() {
         this.daemon.setName("Connections");
-        
-        while (daemon.isRunning()) {
-            int timeoutMillis = 1000 * Config.inst().get(Config.TIMEOUT, 180);
-
-            synchronized (this.connections) {
-                final ListIterator<NNTPConnection> iter = this.connections
-                        .listIterator();
-                NNTPConnection conn;
-
-                while (iter.hasNext()) {
-                    conn = iter.next();
-                    if ((System.currentTimeMillis() - conn.getLastActivity()) > timeoutMillis
-                            && conn.getBuffers().isOutputBufferEmpty()) {
-                        // A connection timeout has occurred so purge the
-                        // connection
-                        iter.remove();
-
-                        // Close and remove the channel
-                        SocketChannelWrapper channel = conn.getSocketChannel();
-                        connByChannel.remove(channel);
-
-                        try {
-                            assert channel != null;
-
-                            // Close the channel; implicitely cancels all
-                            // selectionkeys
-                            channel.close();
-                            Log.get().log(
-                                    Level.INFO,
-                                    "Disconnected: {0} (timeout)",
-                                    channel.getRemoteAddress());
-                        } catch (IOException ex) {
-                            Log.get().log(Level.WARNING, "Connections.run(): {0}", ex);
-                        }
-
-                        // Recycle the used buffers
-                        conn.getBuffers().recycleBuffers();
-                    }
-                }
-            }
 
+        while (daemon.isRunning()) {
             try {
-                Thread.sleep(10000); // Sleep ten seconds
+                Thread.sleep(timeouts.getTickMillis());
             } catch (InterruptedException ex) {
                 Log.get().log(Level.WARNING, "Connections Thread was interrupted: {0}", ex.getMessage());
             }
+
+            timeouts.advance(System.currentTimeMillis());
         }
     }
 }
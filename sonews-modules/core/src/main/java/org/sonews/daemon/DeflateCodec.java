@@ -0,0 +1,175 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of a connection negotiated with COMPRESS DEFLATE (RFC 8054).
+ * Both directions are raw DEFLATE streams (RFC 1951) without zlib header.
+ * The output is compressed into pooled buffers that are passed to the
+ * ChannelLineBuffers when they are full or when the output is flushed at the
+ * end of a response. All methods synchronize on this object, as the
+ * connection may be closed by another thread.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+final class DeflateCodec {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Deflater deflater =
+            new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] deflateInput = new byte[BUFFER_SIZE];
+    private final byte[] deflateOutput = new byte[BUFFER_SIZE];
+    private final byte[] inflateOutput = new byte[BUFFER_SIZE];
+    /** Partially filled buffer of compressed output */
+    private ByteBuffer output;
+    /** true if data was compressed since the last flush */
+    private boolean dirty = false;
+    private boolean ended = false;
+
+    /**
+     * Compresses the remaining bytes of the given buffer and recycles it.
+     *
+     * @param buffer
+     * @param sink Receives the full buffers of compressed output.
+     * @throws ClosedChannelException
+     */
+    synchronized void deflate(ByteBuffer buffer, ChannelLineBuffers sink)
+            throws ClosedChannelException {
+        if (ended) {
+            throw new ClosedChannelException();
+        }
+        while (buffer.hasRemaining()) {
+            int len = Math.min(buffer.remaining(), deflateInput.length);
+            buffer.get(deflateInput, 0, len);
+            deflater.setInput(deflateInput, 0, len);
+            deflate(Deflater.NO_FLUSH, sink);
+        }
+        ChannelLineBuffers.recycleBuffer(buffer);
+        dirty = true;
+    }
+
+    /**
+     * Completes the compressed output of the current response with a sync
+     * flush, so that the client can decompress all of it.
+     *
+     * @param sink
+     * @return true if buffers were passed to the sink.
+     * @throws ClosedChannelException
+     */
+    synchronized boolean flush(ChannelLineBuffers sink)
+            throws ClosedChannelException {
+        if (!dirty || ended) {
+            return false;
+        }
+        deflate(Deflater.SYNC_FLUSH, sink);
+        dirty = false;
+
+        if (output.position() > 0) {
+            ByteBuffer buf = output;
+            output = null;
+            buf.flip();
+            sink.queueOutputBuffer(buf);
+        }
+        return true;
+    }
+
+    private void deflate(int mode, ChannelLineBuffers sink)
+            throws ClosedChannelException {
+        int len;
+        int max;
+        do {
+            if (output == null) {
+                output = BufferPool.getInstance().acquire(BUFFER_SIZE);
+            }
+            max = Math.min(output.remaining(), deflateOutput.length);
+            len = deflater.deflate(deflateOutput, 0, max, mode);
+            output.put(deflateOutput, 0, len);
+            if (!output.hasRemaining()) {
+                ByteBuffer buf = output;
+                output = null;
+                buf.flip();
+                sink.queueOutputBuffer(buf);
+            }
+            // If the output space was exhausted there may be more output
+        } while (len == max || (mode == Deflater.NO_FLUSH && !deflater.needsInput()));
+    }
+
+    /**
+     * Decompresses the data of the given raw buffer into the given buffer.
+     * Data that does not fit into the destination stays in the raw buffer.
+     *
+     * @param raw Buffer in read mode, compacted afterwards (write mode).
+     * @param dst Buffer in write mode.
+     * @return true if bytes were written to dst.
+     * @throws IOException If the input is no valid DEFLATE stream.
+     */
+    synchronized boolean inflate(ByteBuffer raw, ByteBuffer dst)
+            throws IOException {
+        if (ended) {
+            throw new ClosedChannelException();
+        }
+
+        boolean produced = false;
+        try {
+            inflater.setInput(raw.array(), raw.arrayOffset() + raw.position(),
+                    raw.remaining());
+            while (dst.hasRemaining()) {
+                int len = inflater.inflate(inflateOutput, 0,
+                        Math.min(dst.remaining(), inflateOutput.length));
+                if (len == 0) {
+                    break; // Needs input or the stream has finished
+                }
+                dst.put(inflateOutput, 0, len);
+                produced = true;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Invalid compressed input", ex);
+        }
+
+        // Keep the bytes the Inflater has not consumed
+        raw.position(raw.limit() - inflater.getRemaining());
+        raw.compact();
+        return produced;
+    }
+
+    /**
+     * Releases the native resources of the codec.
+     */
+    synchronized void end() {
+        if (!ended) {
+            ended = true;
+            deflater.end();
+            inflater.end();
+            if (output != null) {
+                ChannelLineBuffers.recycleBuffer(output);
+                output = null;
+            }
+        }
+    }
+}
@@ -24,54 +24,129 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 /**
- * Encodes a line to buffers using the correct charset.
+ * Encodes the output lines of a connection to buffers using the correct
+ * charset. Every connection has one LineEncoder that collects many lines in
+ * one pooled buffer; the buffer is passed to the ChannelLineBuffers when it
+ * is full or when flush() is called, e.g. after a command has completed.
+ * This class is not thread-safe, it must only be used by the thread that
+ * processes the commands of the connection.
  *
  * @author Christian Lins
  * @since sonews/0.5.0
  */
 public class LineEncoder {
 
-    private final CharBuffer characters;
-    private final Charset charset;
+    /** Capacity of the buffers the lines are encoded to */
+    static final int BUFFER_SIZE = 4096;
+
+    private final ChannelLineBuffers buffers;
+    private Charset charset;
+    private CharsetEncoder encoder;
+    /** Partially filled buffer in write mode, null if there is none */
+    private ByteBuffer buffer;
 
     /**
      * Constructs new LineEncoder.
      *
+     * @param buffers ChannelLineBuffers the encoded buffers are passed to.
+     */
+    public LineEncoder(ChannelLineBuffers buffers) {
+        this.buffers = buffers;
+    }
+
+    private CharsetEncoder encoder(Charset charset) {
+        if (charset.equals(this.charset)) {
+            return this.encoder.reset();
+        }
+        this.charset = charset;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        return this.encoder;
+    }
+
+    private ByteBuffer buffer() {
+        if (buffer == null) {
+            buffer = BufferPool.getInstance().acquire(BUFFER_SIZE);
+        }
+        return buffer;
+    }
+
+    /**
+     * Encodes the given characters using the given Charset.
+     *
      * @param characters
      * @param charset
+     * @return true if full buffers were passed to the ChannelLineBuffers.
+     * @throws java.nio.channels.ClosedChannelException
      */
-    public LineEncoder(CharBuffer characters, Charset charset) {
-        this.characters = characters;
-        this.charset = charset;
+    public boolean encode(CharBuffer characters, Charset charset)
+            throws ClosedChannelException {
+        final CharsetEncoder enc = encoder(charset);
+        boolean published = false;
+
+        CoderResult res = enc.encode(characters, buffer(), true);
+        while (res.isOverflow()) {
+            publish();
+            published = true;
+            res = enc.encode(characters, buffer(), true);
+        }
+        while (enc.flush(buffer()).isOverflow()) {
+            publish();
+            published = true;
+        }
+        return published;
     }
 
     /**
-     * Encodes the characters of this instance to the given ChannelLineBuffers
-     * using the Charset of this instance.
+     * Appends the given raw bytes. Small amounts are copied to the current
+     * buffer, larger ones are passed to the ChannelLineBuffers as they are.
      *
-     * @param buffer
+     * @param raw
+     * @return true if buffers were passed to the ChannelLineBuffers.
      * @throws java.nio.channels.ClosedChannelException
      */
-    public void encode(ChannelLineBuffers buffer) throws ClosedChannelException {
-        CharsetEncoder encoder = charset.newEncoder();
-        while (characters.hasRemaining()) {
-            ByteBuffer buf = ChannelLineBuffers.newLineBuffer();
-            assert buf.position() == 0;
-            assert buf.capacity() >= 512;
+    public boolean write(ByteBuffer raw) throws ClosedChannelException {
+        if (raw.remaining() <= buffer().remaining()) {
+            buffer.put(raw);
+            return false;
+        }
+
+        flush();
+        buffers.addOutputBuffer(raw);
+        return true;
+    }
 
-            CoderResult res = encoder.encode(characters, buf, true);
+    /**
+     * Passes the current buffer to the ChannelLineBuffers, even if it is not
+     * full.
+     *
+     * @return true if there was a buffer with content.
+     * @throws java.nio.channels.ClosedChannelException
+     */
+    public boolean flush() throws ClosedChannelException {
+        if (buffer == null || buffer.position() == 0) {
+            return false;
+        }
+        publish();
+        return true;
+    }
 
-            // Set limit to current position and current position to 0;
-            // means make ready for read from buffer
-            buf.flip();
-            buffer.addOutputBuffer(buf);
+    private void publish() throws ClosedChannelException {
+        final ByteBuffer buf = this.buffer;
+        this.buffer = null;
 
-            if (res.isUnderflow()) // All input processed
-            {
-                break;
-            }
+        // Set limit to current position and current position to 0;
+        // means make ready for read from buffer
+        buf.flip();
+        try {
+            buffers.addOutputBuffer(buf);
+        } catch (ClosedChannelException ex) {
+            BufferPool.getInstance().release(buf);
+            throw ex;
         }
     }
 }
@@ -0,0 +1,79 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Searches ByteBuffers for line terminators. Instead of testing every byte on
+ * its own the scanner reads eight bytes at once and tests the whole word for
+ * a '\n' byte (SWAR, "SIMD within a register").
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+final class LineScanner {
+
+    private static final long LF = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private LineScanner() {
+    }
+
+    /**
+     * Returns the absolute index of the first '\n' in the given buffer
+     * between from (inclusive) and to (exclusive). The position and limit of
+     * the buffer are neither used nor changed.
+     *
+     * @param buffer
+     * @param from
+     * @param to
+     * @return Index of the line terminator or -1 if there is none.
+     */
+    static int indexOfLF(final ByteBuffer buffer, final int from, final int to) {
+        final boolean littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+        int idx = from;
+
+        for (; idx + Long.BYTES <= to; idx += Long.BYTES) {
+            long word = buffer.getLong(idx);
+            if (!littleEndian) {
+                // The lowest byte of the word must be the first byte in the
+                // buffer, otherwise a borrow of the subtraction below could
+                // report a false match before the real one.
+                word = Long.reverseBytes(word);
+            }
+
+            // Every 0x0A byte becomes 0x00 and sets its high bit in found
+            long x = word ^ LF;
+            long found = (x - LOW_BITS) & ~x & HIGH_BITS;
+            if (found != 0) {
+                return idx + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+
+        for (; idx < to; idx++) {
+            if (buffer.get(idx) == '\n') {
+                return idx;
+            }
+        }
+        return -1;
+    }
+}
@@ -39,7 +39,10 @@ public interface NNTPConnection {
 
     ChannelLineBuffers getBuffers();
 
-    Article getCurrentArticle();
+    /**
+     * @return The current article or null if none is selected.
+     */
+    ArticleCursor getCurrentArticle();
 
     Charset getCurrentCharset();
 
@@ -49,19 +52,62 @@ public interface NNTPConnection {
 
     long getLastActivity();
 
+    /**
+     * @return Number of pipelined commands that were processed in the last
+     *         pass over the received input.
+     */
+    int getPipelineDepth();
+
+    /**
+     * @return Maximum number of pipelined commands that were processed in one
+     *         pass over the received input.
+     */
+    int getMaxPipelineDepth();
+
     ByteBuffer getOutputBuffer();
 
     SocketChannelWrapper getSocketChannel();
 
     User getUser();
 
-    void lineReceived(byte[] line);
+    /**
+     * Processes one line received from the client.
+     *
+     * @param line Read-only view of the line without the line terminator.
+     *             The buffer is only valid during this call.
+     */
+    void lineReceived(ByteBuffer line);
+
+    /**
+     * Processes all complete lines in the input buffer.
+     *
+     * @return Number of commands started.
+     */
+    int processInput();
+
+    /**
+     * Writes the given raw bytes to the client. Large buffers are not copied,
+     * so the buffer must not be changed afterwards.
+     *
+     * @param buffer
+     * @throws IOException
+     */
+    void print(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Writes the given buffer of a memory mapped file to the client without
+     * copying it. The buffer must not be changed afterwards.
+     *
+     * @param buffer
+     * @throws IOException
+     */
+    void printMapped(ByteBuffer buffer) throws IOException;
 
     void println(byte[] line) throws IOException;
 
     void println(CharSequence line);
 
-    void setCurrentArticle(Article art);
+    void setCurrentArticle(ArticleCursor cursor);
 
     void setCurrentGroup(Group group);
 
@@ -69,7 +115,19 @@ public interface NNTPConnection {
 
     void setUser(User user);
 
-    boolean tryReadLock();
-
-    void unlockReadLock();
+    /**
+     * Sends all pending output uncompressed and compresses all following
+     * input and output (COMPRESS DEFLATE).
+     *
+     * @throws IOException
+     */
+    void startCompression() throws IOException;
+
+    /**
+     * Sends all pending output in plain text and encrypts all following
+     * input and output (STARTTLS).
+     *
+     * @throws IOException If TLS is not available.
+     */
+    void startTls() throws IOException;
 }
@@ -31,5 +31,19 @@ public interface SocketChannelWrapper {
 
     public SocketAddress getRemoteAddress() throws IOException;
 
+    /**
+     * Shuts down the connection for reading without closing the channel.
+     *
+     * @throws IOException
+     */
+    public void shutdownInput() throws IOException;
+
+    /**
+     * Shuts down the connection for writing without closing the channel.
+     *
+     * @throws IOException
+     */
+    public void shutdownOutput() throws IOException;
+
     public Object getWrapier();
 }
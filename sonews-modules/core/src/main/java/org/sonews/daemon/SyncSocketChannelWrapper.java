@@ -45,6 +45,16 @@ public class SyncSocketChannelWrapper
         return this.channel.getRemoteAddress();
     }
 
+    @Override
+    public void shutdownInput() throws IOException {
+        this.channel.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        this.channel.shutdownOutput();
+    }
+
     @Override
     public Object getWrapier() {
         return this.channel;
@@ -0,0 +1,337 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Level;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import org.sonews.util.Log;
+
+/**
+ * Encryption of a connection with TLS, either negotiated with STARTTLS
+ * (RFC 4642) or started on accept for implicit TLS. The codec is a layer
+ * below the compression: plain output is collected and encrypted into pooled
+ * direct buffers when a full record is available or the output is flushed
+ * at the end of a response; received records are decrypted into a pooled
+ * buffer from which ChannelLineBuffers takes the plain input. The handshake
+ * is driven by the received data; its delegated tasks run on the calling
+ * thread, which is always one of the worker threads and never a selector
+ * thread. All methods synchronize on this object, as the connection may be
+ * closed by another thread.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+final class TlsCodec {
+
+    /** Maximum plain text of one TLS record */
+    private static final int RECORD_SIZE = 16384;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final int packetSize;
+    private final int appSize;
+    /** Received encrypted data, write mode; null if there is none */
+    private ByteBuffer netInput;
+    /** Decrypted input not yet taken by the ChannelLineBuffers, write mode;
+     *  null if there is none */
+    private ByteBuffer appInput;
+    /** Plain output waiting to be encrypted */
+    private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+    private int pendingBytes = 0;
+    /** true until the initial handshake has finished */
+    private boolean handshaking = true;
+    /** true if encrypted data was queued since the last flush */
+    private boolean queued = false;
+    private boolean ended = false;
+
+    /**
+     * @param engine SSLEngine of the connection, used in server mode.
+     * @throws SSLException If the handshake could not be started.
+     */
+    TlsCodec(SSLEngine engine) throws SSLException {
+        this.engine = engine;
+        engine.setUseClientMode(false);
+        this.packetSize = engine.getSession().getPacketBufferSize();
+        this.appSize = engine.getSession().getApplicationBufferSize();
+        engine.beginHandshake();
+    }
+
+    /**
+     * @return Buffer in write mode the encrypted data received from the
+     *         channel must be read into.
+     */
+    synchronized ByteBuffer getNetInput() {
+        if (netInput == null) {
+            netInput = BufferPool.getInstance().acquire(packetSize);
+        }
+        return netInput;
+    }
+
+    /**
+     * Returns the input buffers to the pool if they are empty.
+     */
+    synchronized void releaseIdleInput() {
+        if (netInput != null && netInput.position() == 0) {
+            ChannelLineBuffers.recycleBuffer(netInput);
+            netInput = null;
+        }
+        if (appInput != null && appInput.position() == 0) {
+            ChannelLineBuffers.recycleBuffer(appInput);
+            appInput = null;
+        }
+    }
+
+    /**
+     * Adds the given buffer to the plain output. The buffer is recycled when
+     * it was encrypted.
+     *
+     * @param buffer
+     * @param sink Receives the buffers of encrypted output.
+     * @throws ClosedChannelException
+     */
+    synchronized void write(ByteBuffer buffer, ChannelLineBuffers sink)
+            throws ClosedChannelException {
+        if (ended) {
+            throw new ClosedChannelException();
+        }
+        pending.add(buffer);
+        pendingBytes += buffer.remaining();
+        if (!handshaking && pendingBytes >= RECORD_SIZE) {
+            wrapPending(sink);
+        }
+    }
+
+    /**
+     * Encrypts all pending plain output. Output added during the initial
+     * handshake is held back until the handshake has finished.
+     *
+     * @param sink
+     * @return true if encrypted data, including handshake messages, was
+     *         passed to the sink since the last call.
+     * @throws ClosedChannelException
+     */
+    synchronized boolean flush(ChannelLineBuffers sink)
+            throws ClosedChannelException {
+        if (ended) {
+            return false;
+        }
+        if (!handshaking) {
+            wrapPending(sink);
+        }
+        boolean result = queued;
+        queued = false;
+        return result;
+    }
+
+    private void wrapPending(ChannelLineBuffers sink)
+            throws ClosedChannelException {
+        while (!pending.isEmpty()) {
+            final ByteBuffer[] srcs = pending.toArray(new ByteBuffer[pending.size()]);
+            final ByteBuffer out = BufferPool.getInstance().acquire(packetSize);
+            boolean progress = false;
+            try {
+                // Put as many records into the buffer as fit
+                while (pendingBytes > 0 && out.remaining() >= packetSize) {
+                    SSLEngineResult res = engine.wrap(srcs, out);
+                    pendingBytes -= res.bytesConsumed();
+                    if (res.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    }
+                    if (res.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new ClosedChannelException();
+                    }
+                    if (res.bytesConsumed() == 0) {
+                        break; // The engine is busy with a handshake
+                    }
+                    progress = true;
+                }
+            } catch (SSLException ex) {
+                // The session is broken, so this connection is lost
+                Log.get().log(Level.WARNING, "TLS error: {0}", ex.getMessage());
+                ChannelLineBuffers.recycleBuffer(out);
+                end();
+                throw new ClosedChannelException();
+            } finally {
+                // Recycling clears the buffers, so this must not be done
+                // before the engine is finished with srcs
+                while (!pending.isEmpty() && !pending.peekFirst().hasRemaining()) {
+                    ChannelLineBuffers.recycleBuffer(pending.removeFirst());
+                }
+            }
+            queue(out, sink);
+            if (!progress) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Decrypts the received data as far as there is space left and passes
+     * handshake messages to the sink. The decrypted input is taken with
+     * transferInput().
+     *
+     * @param sink
+     * @throws IOException If the received data is no valid TLS stream.
+     */
+    synchronized void unwrap(ChannelLineBuffers sink) throws IOException {
+        if (ended) {
+            throw new ClosedChannelException();
+        }
+
+        for (;;) {
+            HandshakeStatus hs = engine.getHandshakeStatus();
+            if (hs == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                continue;
+            } else if (hs == HandshakeStatus.NEED_WRAP) {
+                if (!wrapHandshake(sink)) {
+                    return;
+                }
+                continue;
+            } else if (netInput == null || netInput.position() == 0) {
+                return; // Needs more data from the client
+            }
+
+            if (appInput == null) {
+                appInput = BufferPool.getInstance().acquire(appSize);
+            }
+            netInput.flip();
+            SSLEngineResult res;
+            try {
+                res = engine.unwrap(netInput, appInput);
+            } finally {
+                netInput.compact();
+            }
+            if (res.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                handshakeFinished(sink);
+            }
+            if (res.getStatus() != SSLEngineResult.Status.OK
+                    || res.bytesConsumed() == 0 && res.bytesProduced() == 0) {
+                // Incomplete record, no space left or closed by the client
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves decrypted input to the given buffer as far as there is space.
+     *
+     * @param dst Buffer in write mode.
+     * @return true if bytes were written to dst.
+     */
+    synchronized boolean transferInput(ByteBuffer dst) {
+        if (ended || appInput == null || appInput.position() == 0
+                || !dst.hasRemaining()) {
+            return false;
+        }
+        appInput.flip();
+        if (appInput.remaining() <= dst.remaining()) {
+            dst.put(appInput);
+        } else {
+            ByteBuffer part = appInput.duplicate();
+            part.limit(part.position() + dst.remaining());
+            dst.put(part);
+            appInput.position(part.position());
+        }
+        appInput.compact();
+        return true;
+    }
+
+    private boolean wrapHandshake(ChannelLineBuffers sink) throws IOException {
+        final ByteBuffer out = BufferPool.getInstance().acquire(packetSize);
+        boolean produced = false;
+        try {
+            // Handshake messages of one flight are put into one buffer
+            while (out.remaining() >= packetSize
+                    && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                SSLEngineResult res = engine.wrap(EMPTY, out);
+                if (res.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                    queue(out, sink);
+                    handshakeFinished(sink);
+                    return true;
+                }
+                if (res.getStatus() != SSLEngineResult.Status.OK
+                        || res.bytesProduced() == 0) {
+                    break;
+                }
+                produced = true;
+            }
+        } catch (SSLException ex) {
+            ChannelLineBuffers.recycleBuffer(out);
+            throw ex;
+        }
+        queue(out, sink);
+        return produced;
+    }
+
+    private void handshakeFinished(ChannelLineBuffers sink)
+            throws ClosedChannelException {
+        handshaking = false;
+        // Output held back during the handshake, e.g. the greeting
+        wrapPending(sink);
+    }
+
+    private void queue(ByteBuffer out, ChannelLineBuffers sink)
+            throws ClosedChannelException {
+        out.flip();
+        if (out.hasRemaining()) {
+            sink.enqueueOutput(out);
+            queued = true;
+        } else {
+            ChannelLineBuffers.recycleBuffer(out);
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Releases the buffers of the codec.
+     */
+    synchronized void end() {
+        if (!ended) {
+            ended = true;
+            engine.closeOutbound();
+            pending.forEach(ChannelLineBuffers::recycleBuffer);
+            pending.clear();
+            if (netInput != null) {
+                ChannelLineBuffers.recycleBuffer(netInput);
+                netInput = null;
+            }
+            if (appInput != null) {
+                ChannelLineBuffers.recycleBuffer(appInput);
+                appInput = null;
+            }
+        }
+    }
+}
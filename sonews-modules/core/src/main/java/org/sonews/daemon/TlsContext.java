@@ -0,0 +1,118 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.logging.Level;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.sonews.config.Config;
+import org.sonews.util.Log;
+
+/**
+ * Holds the SSLContext of the server, created from the key store configured
+ * with sonews.tls.keystore. If no key store is configured or it cannot be
+ * loaded, TLS is not available.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public final class TlsContext {
+
+    private static volatile SSLContext context;
+    private static volatile boolean initialized = false;
+
+    private TlsContext() {
+    }
+
+    private static SSLContext get() {
+        if (!initialized) {
+            synchronized (TlsContext.class) {
+                if (!initialized) {
+                    context = load();
+                    initialized = true;
+                }
+            }
+        }
+        return context;
+    }
+
+    private static SSLContext load() {
+        String path = Config.inst().get(Config.TLS_KEYSTORE, null);
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+
+        char[] password = Config.inst().get(Config.TLS_PASSWORD, "").toCharArray();
+        try {
+            return create(KeyStore.getInstance(path.endsWith(".jks") ? "JKS"
+                    : "PKCS12"), path, password);
+        } catch (Exception ex) {
+            Log.get().log(Level.SEVERE, "Could not load TLS key store " + path, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Creates a server SSLContext with the keys of the given key store.
+     *
+     * @param keyStore Empty key store instance of the right type.
+     * @param path     File to load the key store from.
+     * @param password Password of the key store and the keys.
+     * @return Initialized SSLContext.
+     * @throws Exception
+     */
+    static SSLContext create(KeyStore keyStore, String path, char[] password)
+            throws Exception {
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+        return ctx;
+    }
+
+    /**
+     * @return true if a key store is configured and could be loaded.
+     */
+    public static boolean isAvailable() {
+        return get() != null;
+    }
+
+    /**
+     * @return A new SSLEngine or null if TLS is not available.
+     */
+    public static SSLEngine createEngine() {
+        SSLContext ctx = get();
+        if (ctx == null) {
+            return null;
+        }
+        return ctx.createSSLEngine();
+    }
+}
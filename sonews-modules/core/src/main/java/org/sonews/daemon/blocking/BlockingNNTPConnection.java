@@ -0,0 +1,123 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon.blocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+
+import org.sonews.config.Config;
+import org.sonews.daemon.AbstractNNTPConnection;
+import org.sonews.daemon.Connections;
+import org.sonews.daemon.SocketChannelWrapper;
+import org.sonews.util.Log;
+
+/**
+ * NNTPConnection served by a Thread of its own using blocking I/O. The thread
+ * reads from the channel, processes the complete lines and writes the
+ * responses back to the channel; there are no selectors and no hand-off
+ * between threads involved.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public class BlockingNNTPConnection extends AbstractNNTPConnection implements Runnable {
+
+    /**
+     * Number of pending output buffers that are written without waiting for
+     * the command to finish, so that large responses need not to be kept in
+     * memory completely.
+     */
+    private static final int FLUSH_THRESHOLD = 64;
+
+    private SocketChannel channel;
+
+    public BlockingNNTPConnection() {
+    }
+
+    @Override
+    public void setChannelWrapper(SocketChannelWrapper channelWrapper)
+            throws IOException {
+        super.setChannelWrapper(channelWrapper);
+        this.channel = (SocketChannel) channelWrapper.getWrapier();
+    }
+
+    @Override
+    public void run() {
+        try {
+            // Send hello to client
+            println("200 "
+                    + Config.inst().get(Config.HOSTNAME, "localhost")
+                    + " <unknown version>" // + Application.VERSION
+                    + " news server ready - (posting ok).");
+            flush();
+
+            ByteBuffer inputBuffer;
+            while ((inputBuffer = lineBuffers.getReadBuffer()) != null) {
+                // Blocks until some data was received
+                if (channel.read(inputBuffer) == -1) {
+                    break; // End of stream
+                }
+
+                // Send the responses for all lines received so far
+                processInput();
+                flush();
+            }
+        } catch (IOException ex) {
+            // The connection was probably closed by the remote host or
+            // because of a timeout
+            Log.get().log(Level.INFO, "BlockingNNTPConnection.run(): {0}", ex);
+        } catch (RuntimeException ex) {
+            Log.get().log(Level.SEVERE, "Exception in BlockingNNTPConnection: {0}", ex);
+            ex.printStackTrace();
+        } finally {
+            Connections.getInstance().remove(this);
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Log.get().log(Level.WARNING, "BlockingNNTPConnection.run(): {0}", ex);
+            }
+            lineBuffers.recycleBuffers();
+        }
+    }
+
+    /**
+     * Writes all pending output buffers to the channel. As the channel is in
+     * blocking mode this method blocks until everything is written.
+     *
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        ByteBuffer[] bufs = lineBuffers.getOutputBuffers();
+        while (bufs.length > 0) {
+            channel.write(bufs);
+            lineBuffers.recycleWrittenBuffers();
+            bufs = lineBuffers.getOutputBuffers();
+        }
+    }
+
+    @Override
+    protected void outputAdded() throws IOException {
+        if (lineBuffers.getOutputBufferCount() >= FLUSH_THRESHOLD
+                || lineBuffers.isOutputAboveWatermark()) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon.blocking;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+import org.sonews.daemon.Connections;
+import org.sonews.daemon.DaemonRunner;
+import org.sonews.daemon.NNTPDaemonRunnable;
+import org.sonews.daemon.SocketChannelWrapperFactory;
+import org.sonews.util.Log;
+import org.springframework.beans.BeansException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+/**
+ * NNTP daemon serving every connection on a Thread of its own using blocking
+ * I/O. If the Java runtime supports virtual threads (Java 21 and later) every
+ * connection gets a virtual thread, otherwise a platform thread is used.
+ * To use this daemon replace the SynchronousNNTPDaemon in sonews.xml.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+@Component
+public class BlockingNNTPDaemon extends DaemonRunner implements NNTPDaemonRunnable {
+
+    /** Pause after a failed accept in ms, doubled while accepting fails */
+    private static final long MIN_BACKOFF = 10;
+    private static final long MAX_BACKOFF = 1000;
+
+    @Autowired
+    private ApplicationContext context;
+    private int port;
+    private ServerSocket serverSocket = null;
+
+    public BlockingNNTPDaemon() {
+    }
+
+    @Override
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * sonews is compiled for Java 8, so the virtual thread API is looked up
+     * via reflection.
+     *
+     * @return ThreadFactory creating the connection threads.
+     */
+    static ThreadFactory newConnectionThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, "BlockingNNTPConnection-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Log.get().log(Level.INFO,
+                    "Virtual threads not available, using platform threads: {0}", ex);
+            return run -> {
+                Thread thread = new Thread(run, "BlockingNNTPConnection");
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            Log.get().log(Level.INFO, "Server listening on port {0}", port);
+
+            final ThreadFactory threadFactory = newConnectionThreadFactory();
+
+            final ServerSocketChannel serverSocketChannel = ServerSocketChannel
+                    .open();
+            serverSocketChannel.configureBlocking(true); // Set to blocking mode
+
+            // Configure ServerSocket; bind to socket...
+            serverSocket = serverSocketChannel.socket();
+            serverSocket.bind(new InetSocketAddress(this.port));
+
+            long backoff = 0;
+            while (daemon.isRunning()) {
+                SocketChannel socketChannel;
+
+                try {
+                    // As we set the server socket channel to blocking mode the
+                    // accept() method will block. The accepted channel is in
+                    // blocking mode, too.
+                    socketChannel = serverSocketChannel.accept();
+                } catch (IOException ex) {
+                    // Under heavy load an IOException "Too many open files"
+                    // may be thrown; we back off a little to give the
+                    // connection threads some time to close connections.
+                    backoff = Math.min(MAX_BACKOFF, Math.max(MIN_BACKOFF, backoff * 2));
+                    Log.get().log(Level.SEVERE,
+                            "IOException while accepting connection, pausing {0} ms: {1}",
+                            new Object[] { backoff, ex.getMessage() });
+                    Thread.sleep(backoff);
+                    continue;
+                }
+                backoff = 0;
+
+                final BlockingNNTPConnection conn = context
+                        .getAutowireCapableBeanFactory()
+                        .createBean(BlockingNNTPConnection.class);
+                conn.setChannelWrapper(new SocketChannelWrapperFactory(socketChannel).create());
+                Connections.getInstance().add(conn);
+
+                Log.get().log(
+                        Level.INFO, "Connected: {0}", socketChannel.socket()
+                                .getRemoteSocketAddress());
+
+                threadFactory.newThread(conn).start();
+            }
+        } catch (BindException ex) {
+            // Could not bind to socket; this is a fatal, so perform a shutdown
+            Log.get().log(Level.SEVERE, ex.getLocalizedMessage() + " -> shutdown sonews", ex);
+            daemon.requestShutdown();
+        } catch (IOException | InterruptedException | BeansException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        if (this.serverSocket != null) {
+            try {
+                this.serverSocket.close();
+            } catch (IOException ex) {
+                Log.get().log(Level.WARNING, ex.getLocalizedMessage(), ex);
+            }
+        }
+    }
+}
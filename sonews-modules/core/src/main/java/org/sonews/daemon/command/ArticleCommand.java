@@ -19,10 +19,13 @@
 package org.sonews.daemon.command;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import org.sonews.daemon.ArticleCursor;
 import org.sonews.daemon.NNTPConnection;
 import org.sonews.daemon.sync.SynchronousNNTPConnection;
 import org.sonews.storage.Article;
+import org.sonews.storage.ArticleBuffer;
 import org.sonews.storage.Group;
 import org.sonews.storage.StorageBackendException;
 import org.sonews.storage.StorageManager;
@@ -66,16 +69,33 @@ public class ArticleCommand implements Command {
         final String[] command = line.split(" ");
 
         Article article = null;
-        long artIndex = -1;
+        long artIndex = 0; // Sent for the Message-ID form (RFC 3977)
         if (command.length == 1) {
-            article = conn.getCurrentArticle();
-            if (article == null) {
+            final ArticleCursor cursor = conn.getCurrentArticle();
+            if (cursor == null) {
                 conn.println("420 no current article has been selected");
                 return;
             }
+            try {
+                article = cursor.load();
+            } catch (StorageBackendException ex) {
+                ex.printStackTrace();
+            }
+            if (article == null) {
+                conn.println("420 current article number is invalid");
+                return;
+            }
+            artIndex = cursor.getNumber();
         } else if (command[1].matches(SynchronousNNTPConnection.MESSAGE_ID_PATTERN)) {
             // Message-ID
-            article = StorageManager.current().getArticle(command[1]);
+            final ArticleBuffer spooled = getArticleBuffer(command[0], command[1]);
+            if (spooled != null && spooled.getBuffer() != null) {
+                sendFromSpool(conn, command[0], command[1], spooled.getBuffer());
+                return;
+            }
+            // The backend may have loaded the article already
+            article = spooled != null ? spooled.getArticle()
+                    : StorageManager.current().getArticle(command[1]);
             if (article == null) {
                 conn.println("430 no such article found");
                 return;
@@ -101,7 +121,8 @@ public class ArticleCommand implements Command {
                 conn.println("423 no such article number in this group");
                 return;
             }
-            conn.setCurrentArticle(article);
+            conn.setCurrentArticle(ArticleCursor.of(conn.getCurrentGroup(),
+                    artIndex, article));
         }
 
         if (command[0].equalsIgnoreCase("ARTICLE")) {
@@ -143,4 +164,46 @@ public class ArticleCommand implements Command {
             conn.println(".");
         }
     }
+
+    /**
+     * Asks the storage backend for the article or body with the given
+     * Message-ID as buffer, e.g. mapped from an article spool.
+     *
+     * @return The result of Storage.getArticleBuffer() or null if the article
+     *         has to be loaded the usual way.
+     */
+    private static ArticleBuffer getArticleBuffer(String cmd, String messageID) {
+        final boolean body = cmd.equalsIgnoreCase("BODY");
+        if (!body && !cmd.equalsIgnoreCase("ARTICLE")) {
+            return null;
+        }
+
+        try {
+            return StorageManager.current().getArticleBuffer(messageID, body);
+        } catch (StorageBackendException ex) {
+            ex.printStackTrace();
+            return null; // Try the usual way
+        }
+    }
+
+    /**
+     * Sends the article or body from the buffer provided by the storage
+     * backend. The article is not loaded into the heap then.
+     */
+    private static void sendFromSpool(NNTPConnection conn, String cmd,
+            String messageID, ByteBuffer buf) throws IOException {
+        if (cmd.equalsIgnoreCase("BODY")) {
+            conn.println("222 0 " + messageID + " body");
+        } else {
+            conn.println("220 0 " + messageID
+                    + " article retrieved - head and body follow");
+        }
+        // Includes the terminating dot line; large articles are mapped from
+        // the spool file, small ones are read into a heap buffer
+        if (buf.isDirect()) {
+            conn.printMapped(buf);
+        } else {
+            conn.print(buf);
+        }
+    }
 }
@@ -21,6 +21,7 @@ package org.sonews.daemon.command;
 import java.io.IOException;
 
 import org.sonews.daemon.NNTPConnection;
+import org.sonews.daemon.TlsContext;
 
 import org.springframework.stereotype.Component;
 
@@ -56,7 +57,10 @@ public class CapabilitiesCommand implements Command {
                                                                      // RFC3977
             "READER", // Server implements commands for reading
             "POST", // Server implements POST command
-            "OVER" // Server implements OVER command
+            "OVER", // Server implements OVER command
+            "HDR", // Server implements HDR command
+            "LIST ACTIVE NEWSGROUPS HEADERS OVERVIEW.FMT", // LIST variants
+            "COMPRESS DEFLATE" // Server implements COMPRESS command (RFC 8054)
     };
 
     @Override
@@ -91,6 +95,12 @@ public class CapabilitiesCommand implements Command {
         for (String cap : CAPABILITIES) {
             conn.println(cap);
         }
+        // STARTTLS is only offered while the session is neither encrypted
+        // nor compressed (RFC 4642, RFC 8054)
+        if (TlsContext.isAvailable() && !conn.getBuffers().isTls()
+                && !conn.getBuffers().isCompressed()) {
+            conn.println("STARTTLS");
+        }
         conn.println(".");
     }
 }
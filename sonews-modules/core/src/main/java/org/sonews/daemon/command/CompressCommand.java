@@ -0,0 +1,75 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon.command;
+
+import java.io.IOException;
+
+import org.sonews.daemon.NNTPConnection;
+import org.sonews.storage.StorageBackendException;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Implementation of the COMPRESS command (RFC 8054). The only supported
+ * algorithm is DEFLATE; after the positive response all data in both
+ * directions is compressed until the connection is closed.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+@Component
+public class CompressCommand implements Command {
+
+    @Override
+    public String[] getSupportedCommandStrings() {
+        return new String[] { "COMPRESS" };
+    }
+
+    @Override
+    public boolean hasFinished() {
+        return true;
+    }
+
+    @Override
+    public String impliedCapability() {
+        return null;
+    }
+
+    @Override
+    public boolean isStateful() {
+        return false;
+    }
+
+    @Override
+    public void processLine(NNTPConnection conn, final String line, byte[] raw)
+            throws IOException, StorageBackendException {
+        final String[] command = line.trim().split("\\s+");
+
+        if (command.length != 2) {
+            conn.println("501 syntax error");
+        } else if (conn.getBuffers().isCompressed()) {
+            conn.println("502 Command unavailable");
+        } else if (!command[1].equalsIgnoreCase("DEFLATE")) {
+            conn.println("503 Compression algorithm not supported");
+        } else {
+            conn.println("206 Compression active");
+            conn.startCompression();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon.command;
+
+import java.io.IOException;
+
+import org.sonews.daemon.AbstractNNTPConnection;
+import org.sonews.daemon.ArticleCursor;
+import org.sonews.daemon.NNTPConnection;
+import org.sonews.storage.Article;
+import org.sonews.storage.Group;
+import org.sonews.storage.Overview;
+import org.sonews.storage.StorageBackendException;
+import org.sonews.storage.StorageManager;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Class handling the HDR and XHDR commands (RFC 3977 section 8.5).
+ *
+ * <pre>
+ *   HDR field message-id
+ *   HDR field range
+ *   HDR field
+ *
+ *   Responses
+ *
+ *   First form (message-id specified)
+ *     225    Headers follow (multi-line)
+ *     430    No article with that message-id
+ *
+ *   Second form (range specified)
+ *     225    Headers follow (multi-line)
+ *     412    No newsgroup selected
+ *     423    No articles in that range
+ *
+ *   Third form (current article number used)
+ *     225    Headers follow (multi-line)
+ *     412    No newsgroup selected
+ *     420    Current article number is invalid
+ * </pre>
+ *
+ * XHDR is the older form of HDR; it replies with 221 and an empty list
+ * instead of 423 and sends the message-id instead of 0 in the first form.
+ *
+ * Fields of the overview (and the metadata items :bytes and :lines) are
+ * taken from the overview records, other headers from the storage backend,
+ * see Storage.forEachHeader(). The values of a range are streamed to the
+ * client while they are read from the storage; every article of the range
+ * gets a line, with an empty value if it lacks the header.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+@Component
+public class HdrCommand implements Command {
+
+    @Override
+    public String[] getSupportedCommandStrings() {
+        return new String[] { "HDR", "XHDR" };
+    }
+
+    @Override
+    public boolean hasFinished() {
+        return true;
+    }
+
+    @Override
+    public String impliedCapability() {
+        return null;
+    }
+
+    @Override
+    public boolean isStateful() {
+        return false;
+    }
+
+    @Override
+    public void processLine(NNTPConnection conn, final String line, byte[] raw)
+            throws IOException, StorageBackendException {
+        final String[] command = line.split("\\p{Space}+");
+        if (command.length < 2 || command.length > 3) {
+            conn.println("501 syntax error");
+            return;
+        }
+
+        final boolean xhdr = command[0].equalsIgnoreCase("XHDR");
+        final String header = command[1];
+
+        if (command.length == 3
+                && command[2].matches(AbstractNNTPConnection.MESSAGE_ID_PATTERN)) {
+            Article article = StorageManager.current().getArticle(command[2]);
+            if (article == null) {
+                conn.println("430 no such article");
+                return;
+            }
+            conn.println(xhdr ? "221 header follows" : "225 headers follow");
+            conn.println((xhdr ? command[2] : "0") + " "
+                    + getHeader(article, header));
+            conn.println(".");
+            return;
+        }
+
+        final Group group = conn.getCurrentGroup();
+        if (group == null) {
+            conn.println("412 no newsgroup selected");
+            return;
+        }
+
+        long first;
+        long last;
+        if (command.length == 2) {
+            final ArticleCursor cursor = conn.getCurrentArticle();
+            if (cursor == null) {
+                conn.println("420 current article number is invalid");
+                return;
+            }
+            first = last = cursor.getNumber();
+        } else {
+            try {
+                String[] nums = command[2].split("-", 2);
+                first = Long.parseLong(nums[0]);
+                if (nums.length == 1) {
+                    last = first;
+                } else if (nums[1].isEmpty()) {
+                    last = group.getLastArticleNumber();
+                } else {
+                    last = Long.parseLong(nums[1]);
+                }
+            } catch (NumberFormatException ex) {
+                conn.println("501 invalid range");
+                return;
+            }
+        }
+
+        final long[] count = new long[1];
+        if (first <= last) {
+            try {
+                StorageManager.current().forEachHeader(group, first, last,
+                        header, (number, value) -> {
+                            if (count[0]++ == 0) {
+                                conn.println(xhdr ? "221 header follows"
+                                        : "225 headers follow");
+                            }
+                            conn.println(number + " " + Overview.escape(value));
+                        });
+            } catch (StorageBackendException ex) {
+                if (count[0] > 0) {
+                    // The response was started and cannot be repeated
+                    throw new IOException(ex);
+                }
+                throw ex;
+            }
+        }
+
+        if (count[0] == 0) {
+            if (!xhdr) {
+                conn.println(command.length == 2
+                        ? "420 current article number is invalid"
+                        : "423 no articles in that range");
+                return;
+            }
+            conn.println("221 header follows");
+        }
+        conn.println(".");
+    }
+
+    private static String getHeader(Article article, String header) {
+        final int field = Overview.fieldIndex(header);
+        if (field >= 0) {
+            return Overview.field(Overview.format(article), field);
+        }
+        return Overview.escape(article.getHeader(header)[0]);
+    }
+}
@@ -20,14 +20,13 @@ package org.sonews.daemon.command;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import org.sonews.daemon.NNTPConnection;
 import org.sonews.storage.Group;
 import org.sonews.storage.StorageBackendException;
 import org.sonews.util.Log;
+import org.sonews.util.Wildmat;
 
 import org.springframework.stereotype.Component;
 
@@ -71,26 +70,46 @@ public class ListCommand implements Command {
                 conn.println("215 information follows");
                 conn.println("Subject:\nFrom:\nDate:\nMessage-ID:\nReferences:\nBytes:\nLines:\nXref");
                 conn.println(".");
-            } else if (command[1].equalsIgnoreCase("NEWSGROUPS")) {
-                conn.println("215 information follows");
-                final List<Group> list = Group.getAll();
-                for (Group g : list) {
-                    conn.println(g.getName() + "\t" + "-");
-                }
+            } else if (command[1].equalsIgnoreCase("HEADERS")) {
+                // Every header can be retrieved with HDR
+                conn.println("215 headers and metadata items supported:");
+                conn.println(":\n:bytes\n:lines");
                 conn.println(".");
+            } else if (command[1].equalsIgnoreCase("ACTIVE")
+                    || command[1].equalsIgnoreCase("NEWSGROUPS")) {
+                Wildmat wildmat = null;
+                if (command.length > 2) {
+                    try {
+                        wildmat = Wildmat.compile(command[2]);
+                    } catch (PatternSyntaxException ex) {
+                        Log.get().info(ex.toString());
+                        conn.println("501 invalid wildmat");
+                        return;
+                    }
+                }
+
+                if (command[1].equalsIgnoreCase("ACTIVE")) {
+                    printGroupInfo(conn, wildmat);
+                } else {
+                    conn.println("215 information follows");
+                    final List<Group> list = Group.getAll();
+                    for (Group g : list) {
+                        if (wildmat == null || wildmat.matches(g.getName())) {
+                            conn.println(g.getName() + "\t" + "-");
+                        }
+                    }
+                    conn.println(".");
+                }
             } else if (command[1].equalsIgnoreCase("SUBSCRIPTIONS")) {
                 conn.println("215 information follows");
                 conn.println(".");
             } else if (command[1].equalsIgnoreCase("EXTENSIONS")) {
                 conn.println("202 Supported NNTP extensions.");
+                conn.println("HDR");
                 conn.println("LISTGROUP");
                 conn.println("XDAEMON");
                 conn.println("XPAT");
                 conn.println(".");
-            } else if (command[1].equalsIgnoreCase("ACTIVE")) {
-                String pattern = command.length == 2 ? null : command[2]
-                        .replace("*", "\\w*");
-                printGroupInfo(conn, pattern);
             } else {
                 conn.println("500 unknown argument to LIST command");
             }
@@ -99,24 +118,19 @@ public class ListCommand implements Command {
         }
     }
 
-    private void printGroupInfo(NNTPConnection conn, String pattern)
+    private void printGroupInfo(NNTPConnection conn, Wildmat wildmat)
             throws IOException, StorageBackendException {
         final List<Group> groups = Group.getAll();
         if (groups != null) {
             conn.println("215 list of newsgroups follows");
             for (Group g : groups) {
-                try {
-                    Matcher matcher = pattern == null ? null : Pattern.compile(
-                            pattern).matcher(g.getName());
-                    if (!g.isDeleted() && (matcher == null || matcher.find())) {
-                        String writeable = g.isWriteable() ? " y" : " n";
-                        // Indeed first the higher article number then the lower
-                        conn.println(g.getName() + " "
-                                + g.getLastArticleNumber() + " "
-                                + g.getFirstArticleNumber() + writeable);
-                    }
-                } catch (PatternSyntaxException ex) {
-                    Log.get().info(ex.toString());
+                if (!g.isDeleted()
+                        && (wildmat == null || wildmat.matches(g.getName()))) {
+                    String writeable = g.isWriteable() ? " y" : " n";
+                    // Indeed first the higher article number then the lower
+                    conn.println(g.getName() + " "
+                            + g.getLastArticleNumber() + " "
+                            + g.getFirstArticleNumber() + writeable);
                 }
             }
             conn.println(".");
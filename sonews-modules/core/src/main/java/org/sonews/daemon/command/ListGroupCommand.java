@@ -19,11 +19,11 @@
 package org.sonews.daemon.command;
 
 import java.io.IOException;
-import java.util.List;
 
 import org.sonews.daemon.NNTPConnection;
 import org.sonews.storage.Group;
 import org.sonews.storage.StorageBackendException;
+import org.sonews.storage.StorageManager;
 
 import org.springframework.stereotype.Component;
 
@@ -74,13 +74,18 @@ public class ListGroupCommand implements Command {
             return;
         }
 
-        List<Long> ids = group.getArticleNumbers();
-        conn.println("211 " + ids.size() + " " + group.getFirstArticleNumber()
-                + " " + group.getLastArticleNumber()
+        conn.println("211 " + group.getPostingsCount() + " "
+                + group.getFirstArticleNumber() + " "
+                + group.getLastArticleNumber()
                 + " list of article numbers follow");
-        for (long id : ids) {
-            // One index number per line
-            conn.println(Long.toString(id));
+        try {
+            // One index number per line, streamed from the storage
+            StorageManager.current().forEachArticleNumber(
+                    group.getInternalID(),
+                    (number, record) -> conn.println(Long.toString(number)));
+        } catch (StorageBackendException ex) {
+            // The response was started and cannot be repeated
+            throw new IOException(ex);
         }
         conn.println(".");
     }
@@ -20,6 +20,7 @@ package org.sonews.daemon.command;
 
 import java.io.IOException;
 
+import org.sonews.daemon.ArticleCursor;
 import org.sonews.daemon.NNTPConnection;
 import org.sonews.storage.Article;
 import org.sonews.storage.Group;
@@ -60,7 +61,7 @@ public class NextPrevCommand implements Command {
     @Override
     public void processLine(NNTPConnection conn, final String line, byte[] raw)
             throws IOException, StorageBackendException {
-        final Article currA = conn.getCurrentArticle();
+        final ArticleCursor currA = conn.getCurrentArticle();
         final Group currG = conn.getCurrentGroup();
 
         if (currA == null) {
@@ -84,19 +85,19 @@ public class NextPrevCommand implements Command {
         }
     }
 
-    private void selectNewArticle(NNTPConnection conn, Article article,
+    private void selectNewArticle(NNTPConnection conn, ArticleCursor cursor,
             Group grp, final int delta) throws IOException,
             StorageBackendException {
-        assert article != null;
+        assert cursor != null;
 
-        article = grp.getArticle(grp.getIndexOf(article) + delta);
+        final long number = cursor.getNumber() + delta;
+        final Article article = grp.getArticle(number);
 
         if (article == null) {
             conn.println("421 no next article in this group");
         } else {
-            conn.setCurrentArticle(article);
-            conn.println("223 " + conn.getCurrentGroup().getIndexOf(article)
-                    + " " + article.getMessageID()
+            conn.setCurrentArticle(ArticleCursor.of(grp, number, article));
+            conn.println("223 " + number + " " + article.getMessageID()
                     + " article retrieved - request text separately");
         }
     }
@@ -21,11 +21,11 @@ package org.sonews.daemon.command;
 import java.io.IOException;
 import java.util.List;
 
+import org.sonews.daemon.ArticleCursor;
 import org.sonews.daemon.NNTPConnection;
 import org.sonews.util.Log;
-import org.sonews.storage.Article;
-import org.sonews.storage.Headers;
 import org.sonews.storage.StorageBackendException;
+import org.sonews.storage.StorageManager;
 import org.sonews.util.Pair;
 
 import org.springframework.stereotype.Component;
@@ -107,14 +107,16 @@ import org.springframework.stereotype.Component;
  *
  * </pre>
  *
+ * The overview records are provided by the storage backend, see
+ * Storage.getOverview(); the records of a range are streamed to the client
+ * while they are read from the storage.
+ *
  * @author Christian Lins
  * @since sonews/0.5.0
  */
 @Component
 public class OverCommand implements Command {
 
-    public static final int MAX_LINES_PER_DBREQUEST = 200;
-
     @Override
     public String[] getSupportedCommandStrings() {
         return new String[] { "OVER", "XOVER" };
@@ -146,13 +148,20 @@ public class OverCommand implements Command {
             // If no parameter was specified, show information about
             // the currently selected article(s)
             if (command.length == 1) {
-                final Article art = conn.getCurrentArticle();
-                if (art == null) {
+                final ArticleCursor cursor = conn.getCurrentArticle();
+                final List<Pair<Long, String>> overview = cursor == null
+                        ? null
+                        : conn.getCurrentGroup().getOverview(
+                                cursor.getNumber(), cursor.getNumber());
+                if (overview == null || overview.isEmpty()) {
                     conn.println("420 no article(s) selected");
                     return;
                 }
 
-                conn.println(buildOverview(art, -1));
+                Pair<Long, String> record = overview.get(0);
+                conn.println("224 overview information follows");
+                printOverview(conn, record.getA(), record.getB());
+                conn.println(".");
             } // otherwise print information about the specified range
             else {
                 long artStart;
@@ -185,79 +194,43 @@ public class OverCommand implements Command {
                         conn.println(".");
                     }
                 } else {
-                    for (long n = artStart; n <= artEnd; n += MAX_LINES_PER_DBREQUEST) {
-                        long nEnd = Math.min(n + MAX_LINES_PER_DBREQUEST - 1,
-                                artEnd);
-                        List<Pair<Long, Article>> articleHeads = conn
-                                .getCurrentGroup().getArticleHeads(n, nEnd);
-                        if (articleHeads.isEmpty() && n == artStart
-                                && command[0].equalsIgnoreCase("OVER")) {
-                            // This reply is only valid for OVER, not for XOVER
-                            // command
-                            conn.println("423 no articles in that range");
-                            return;
-                        } else if (n == artStart) {
-                            // XOVER replies this although there is no data
-                            // available
-                            conn.println("224 overview information follows");
+                    final long[] count = new long[1];
+                    try {
+                        StorageManager.current().forEachOverview(
+                                conn.getCurrentGroup(), artStart, artEnd,
+                                (number, record) -> {
+                                    if (count[0]++ == 0) {
+                                        conn.println("224 overview information follows");
+                                    }
+                                    printOverview(conn, number, record);
+                                });
+                    } catch (StorageBackendException ex) {
+                        if (count[0] > 0) {
+                            // The response was started and cannot be repeated
+                            throw new IOException(ex);
                         }
+                        throw ex;
+                    }
 
-                        for (Pair<Long, Article> article : articleHeads) {
-                            String overview = buildOverview(article.getB(),
-                                    article.getA());
-                            conn.println(overview);
+                    if (count[0] == 0) {
+                        if (command[0].equalsIgnoreCase("OVER")) {
+                            // This reply is only valid for OVER, not for
+                            // XOVER command
+                            conn.println("423 no articles in that range");
+                            return;
                         }
-                    } // for
+                        // XOVER replies this although there is no data
+                        // available
+                        conn.println("224 overview information follows");
+                    }
                     conn.println(".");
                 }
             }
         }
     }
 
-    private String buildOverview(Article art, long nr) {
-        StringBuilder overview = new StringBuilder();
-        overview.append(nr);
-        overview.append('\t');
-
-        String subject = art.getHeader(Headers.SUBJECT)[0];
-        if ("".equals(subject)) {
-            subject = "<empty>";
-        }
-        overview.append(escapeString(subject));
-        overview.append('\t');
-
-        overview.append(escapeString(art.getHeader(Headers.FROM)[0]));
-        overview.append('\t');
-        overview.append(escapeString(art.getHeader(Headers.DATE)[0]));
-        overview.append('\t');
-        overview.append(escapeString(art.getHeader(Headers.MESSAGE_ID)[0]));
-        overview.append('\t');
-        overview.append(escapeString(art.getHeader(Headers.REFERENCES)[0]));
-        overview.append('\t');
-
-        String bytes = art.getHeader(Headers.BYTES)[0];
-        if ("".equals(bytes)) {
-            bytes = "0";
-        }
-        overview.append(escapeString(bytes));
-        overview.append('\t');
-
-        String lines = art.getHeader(Headers.LINES)[0];
-        if ("".equals(lines)) {
-            lines = "0";
-        }
-        overview.append(escapeString(lines));
-        overview.append('\t');
-        overview.append(escapeString(art.getHeader(Headers.XREF)[0]));
-
-        // Remove trailing tabs if some data is empty
-        return overview.toString().trim();
-    }
-
-    private String escapeString(String str) {
-        String nstr = str.replace("\r", "");
-        nstr = nstr.replace('\n', ' ');
-        nstr = nstr.replace('\t', ' ');
-        return nstr.trim();
+    private void printOverview(NNTPConnection conn, long number, String record)
+            throws IOException {
+        conn.println(number + "\t" + record);
     }
 }
@@ -19,8 +19,8 @@
 package org.sonews.daemon.command;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.logging.Level;
 
@@ -38,18 +38,21 @@ import org.sonews.storage.StorageBackendException;
 import org.sonews.storage.StorageManager;
 import org.sonews.util.Log;
 
+import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
 /**
  * Implementation of the POST command. This command requires multiple lines from
  * the client, so the handling of asynchronous reading is a little tricky to
- * handle.
+ * handle. The body lines are received as bytes and copied into the body
+ * buffer without decoding them.
  *
  * @author Christian Lins
  * @since sonews/0.5.0
  */
 @Component
-public class PostCommand implements Command {
+@Scope("prototype")
+public class PostCommand implements RawLineCommand {
 
     private Article article;
     private int lineCount = 0;
@@ -59,7 +62,7 @@ public class PostCommand implements Command {
                                                                                        // in
                                                                                        // bytes
     private PostState state = PostState.WaitForLineOne;
-    private final ByteArrayOutputStream bufBody = new ByteArrayOutputStream();
+    private ByteBuffer bufBody = ByteBuffer.allocate(4096);
     private final StringBuilder strHead = new StringBuilder();
 
     @Override
@@ -82,6 +85,11 @@ public class PostCommand implements Command {
         return true;
     }
 
+    @Override
+    public boolean wantsRawLine() {
+        return this.state == PostState.ReadingBody;
+    }
+
     /**
      * Process the given line String. line.trim() was called by NNTPConnection.
      *
@@ -147,34 +155,7 @@ public class PostCommand implements Command {
             break;
         }
         case ReadingBody: {
-            if (".".equals(line)) {
-                // Set some headers needed for Over command
-                headers.setHeader(Headers.LINES, Integer.toString(lineCount));
-                headers.setHeader(Headers.BYTES, Long.toString(bodySize));
-
-                byte[] body = bufBody.toByteArray();
-                if (body.length >= 2) {
-                    // Remove trailing CRLF
-                    body = Arrays.copyOf(body, body.length - 2);
-                }
-                article.setBody(body); // set the article body
-
-                postArticle(conn, article);
-                state = PostState.Finished;
-            } else {
-                bodySize += line.length() + 1;
-                lineCount++;
-
-                // Add line to body buffer
-                bufBody.write(raw, 0, raw.length);
-                bufBody.write(SynchronousNNTPConnection.NEWLINE.getBytes("UTF-8"));
-
-                if (bodySize > maxBodySize) {
-                    conn.println("500 article is too long");
-                    state = PostState.Finished;
-                    break;
-                }
-            }
+            processRawLine(conn, ByteBuffer.wrap(raw));
             break;
         }
         default: {
@@ -184,6 +165,57 @@ public class PostCommand implements Command {
         }
     }
 
+    /**
+     * Processes a line of the article body.
+     *
+     * @param conn
+     * @param line
+     * @throws IOException
+     */
+    @Override
+    public void processRawLine(NNTPConnection conn, ByteBuffer line)
+            throws IOException {
+        final int length = line.remaining();
+        if (length == 1 && line.get(line.position()) == '.') {
+            // Set some headers needed for Over command
+            headers.setHeader(Headers.LINES, Integer.toString(lineCount));
+            headers.setHeader(Headers.BYTES, Long.toString(bodySize));
+
+            // Remove trailing CRLF
+            int bodyLength = bufBody.position();
+            if (bodyLength >= 2) {
+                bodyLength -= 2;
+            }
+            article.setBody(Arrays.copyOf(bufBody.array(), bodyLength));
+
+            postArticle(conn, article);
+            state = PostState.Finished;
+        } else {
+            bodySize += length + 1;
+            lineCount++;
+
+            if (bodySize > maxBodySize) {
+                conn.println("500 article is too long");
+                state = PostState.Finished;
+                return;
+            }
+
+            // Add line to body buffer
+            if (bufBody.remaining() < length + 2) {
+                int capacity = bufBody.capacity() * 2;
+                while (capacity < bufBody.position() + length + 2) {
+                    capacity *= 2;
+                }
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                bufBody.flip();
+                grown.put(bufBody);
+                bufBody = grown;
+            }
+            bufBody.put(line);
+            bufBody.put((byte) '\r').put((byte) '\n');
+        }
+    }
+
     /**
      * Article is a control message and needs special handling.
      *
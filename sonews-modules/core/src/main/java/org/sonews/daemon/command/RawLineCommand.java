@@ -0,0 +1,56 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon.command;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.sonews.daemon.NNTPConnection;
+import org.sonews.storage.StorageBackendException;
+
+/**
+ * Command that can take received lines as bytes. While wantsRawLine() returns
+ * true the connection passes every line to processRawLine() instead of
+ * decoding it into a String first. Used for payload lines, e.g. the body of a
+ * posted article, that are stored as they were received.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public interface RawLineCommand extends Command {
+
+    /**
+     * @return true if the next received line should be passed to
+     *         processRawLine().
+     */
+    boolean wantsRawLine();
+
+    /**
+     * Processes a received line. The buffer is a read-only view into the
+     * input buffer of the connection without the line terminator; it is only
+     * valid until this method returns.
+     *
+     * @param conn
+     * @param line
+     * @throws IOException
+     * @throws StorageBackendException
+     */
+    void processRawLine(NNTPConnection conn, ByteBuffer line)
+            throws IOException, StorageBackendException;
+}
@@ -0,0 +1,77 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon.command;
+
+import java.io.IOException;
+
+import org.sonews.daemon.NNTPConnection;
+import org.sonews.daemon.TlsContext;
+import org.sonews.storage.StorageBackendException;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Implementation of the STARTTLS command (RFC 4642). After the positive
+ * response the TLS handshake begins and all data in both directions is
+ * encrypted until the connection is closed. STARTTLS is not available if
+ * the session is already encrypted or compressed.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+@Component
+public class StartTlsCommand implements Command {
+
+    @Override
+    public String[] getSupportedCommandStrings() {
+        return new String[] { "STARTTLS" };
+    }
+
+    @Override
+    public boolean hasFinished() {
+        return true;
+    }
+
+    @Override
+    public String impliedCapability() {
+        return null;
+    }
+
+    @Override
+    public boolean isStateful() {
+        return false;
+    }
+
+    @Override
+    public void processLine(NNTPConnection conn, final String line, byte[] raw)
+            throws IOException, StorageBackendException {
+        final String[] command = line.trim().split("\\s+");
+
+        if (command.length != 1) {
+            conn.println("501 syntax error");
+        } else if (conn.getBuffers().isTls() || conn.getBuffers().isCompressed()) {
+            conn.println("502 Command unavailable");
+        } else if (!TlsContext.isAvailable()) {
+            conn.println("580 Can not initiate TLS negotiation");
+        } else {
+            conn.println("382 Continue with TLS negotiation");
+            conn.startTls();
+        }
+    }
+}
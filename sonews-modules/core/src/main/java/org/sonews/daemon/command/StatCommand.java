@@ -20,6 +20,7 @@ package org.sonews.daemon.command;
 
 import java.io.IOException;
 
+import org.sonews.daemon.ArticleCursor;
 import org.sonews.daemon.NNTPConnection;
 import org.sonews.daemon.sync.SynchronousNNTPConnection;
 import org.sonews.storage.Article;
@@ -65,11 +66,16 @@ public class StatCommand implements Command {
 
         Article article = null;
         if (command.length == 1) {
-            article = conn.getCurrentArticle();
-            if (article == null) {
+            // The current article need not be loaded
+            final ArticleCursor cursor = conn.getCurrentArticle();
+            if (cursor == null) {
                 conn.println("420 no current article has been selected");
-                return;
+            } else {
+                conn.println("223 " + cursor.getNumber() + " "
+                        + cursor.getMessageID()
+                        + " article retrieved - request text separately");
             }
+            return;
         } else if (command[1].matches(SynchronousNNTPConnection.MESSAGE_ID_PATTERN)) {
             // Message-ID
             article = StorageManager.current().getArticle(command[1]);
@@ -79,8 +85,9 @@ public class StatCommand implements Command {
             }
         } else {
             // Message Number
+            long aid = -1;
             try {
-                long aid = Long.parseLong(command[1]);
+                aid = Long.parseLong(command[1]);
                 article = conn.getCurrentGroup().getArticle(aid);
             } catch (NumberFormatException | StorageBackendException ex) {
                 ex.printStackTrace();
@@ -89,7 +96,11 @@ public class StatCommand implements Command {
                 conn.println("423 no such article number in this group");
                 return;
             }
-            conn.setCurrentArticle(article);
+            conn.setCurrentArticle(ArticleCursor.of(conn.getCurrentGroup(),
+                    aid, article));
+            conn.println("223 " + aid + " " + article.getMessageID()
+                    + " article retrieved - request text separately");
+            return;
         }
 
         conn.println("223 " + conn.getCurrentGroup().getIndexOf(article)
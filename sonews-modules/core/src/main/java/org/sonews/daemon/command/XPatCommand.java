@@ -19,14 +19,14 @@
 package org.sonews.daemon.command;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.regex.PatternSyntaxException;
 
 import org.sonews.daemon.NNTPConnection;
 import org.sonews.storage.StorageBackendException;
 import org.sonews.storage.StorageManager;
-import org.sonews.util.Pair;
+import org.sonews.util.Wildmat;
 
 import org.springframework.stereotype.Component;
 
@@ -117,7 +117,9 @@ public class XPatCommand implements Command {
         if (command.length >= 4) {
             String header = command[1].toLowerCase(Locale.US);
             String range = command[2];
-            String pattern = command[3];
+            // Additional patterns are joined to one separated by a space
+            String pattern = String.join(" ",
+                    Arrays.copyOfRange(command, 3, command.length));
 
             long start = -1;
             long end = -1;
@@ -132,20 +134,32 @@ public class XPatCommand implements Command {
                 start = Long.parseLong(range);
             }
 
+            // The values are streamed from the storage, so the status line
+            // is sent with the first one
+            final long[] count = new long[1];
             try {
-                List<Pair<Long, String>> heads = StorageManager.current()
-                        .getArticleHeaders(conn.getCurrentGroup(), start,
-                                end, header, pattern);
-
-                conn.println("221 header follows");
-                for (Pair<Long, String> head : heads) {
-                    conn.println(head.getA() + " " + head.getB());
+                // Reject invalid patterns before the storage is queried
+                Wildmat.compile(pattern);
+                StorageManager.current().forEachArticleHeader(
+                        conn.getCurrentGroup(), start, end, header, pattern,
+                        (number, value) -> {
+                            if (count[0]++ == 0) {
+                                conn.println("221 header follows");
+                            }
+                            conn.println(number + " " + value);
+                        });
+                if (count[0] == 0) {
+                    conn.println("221 header follows");
                 }
                 conn.println(".");
             } catch (PatternSyntaxException ex) {
                 ex.printStackTrace();
                 conn.println("500 invalid pattern syntax");
             } catch (StorageBackendException ex) {
+                if (count[0] > 0) {
+                    // The response was started and cannot be repeated
+                    throw new IOException(ex);
+                }
                 ex.printStackTrace();
                 conn.println("500 internal server error");
             }
@@ -0,0 +1,189 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon.sync;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.logging.Level;
+
+import org.sonews.daemon.DaemonRunner;
+import org.sonews.util.Log;
+import org.sonews.util.TokenBucket;
+
+/**
+ * A Thread task accepting the connections of one or more server channels
+ * using a Selector. Accepting is paused instead of blocking the thread if
+ * the accept rate limit is reached or accept() fails, e.g. because there are
+ * too many open files; connections arriving meanwhile wait in the listen
+ * backlog.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+class Acceptor extends DaemonRunner {
+
+    /** Connections accepted per event, so that no server channel starves */
+    private static final int MAX_ACCEPTS = 64;
+    private static final long MIN_BACKOFF = 10;
+    private static final long MAX_BACKOFF = 1000;
+
+    private final Selector selector;
+    private final SynchronousNNTPDaemon nntpDaemon;
+    /** Shared accept rate limit, null if unlimited */
+    private final TokenBucket rateLimit;
+    /** Time until accepting is paused, 0 if not paused */
+    private long pausedUntil = 0;
+    private long backoff = 0;
+
+    /**
+     * @param nntpDaemon Daemon the accepted connections are passed to.
+     * @param rateLimit  Accept rate limit or null.
+     * @throws IOException If the selector could not be opened.
+     */
+    Acceptor(SynchronousNNTPDaemon nntpDaemon, TokenBucket rateLimit)
+            throws IOException {
+        this.selector = Selector.open();
+        this.nntpDaemon = nntpDaemon;
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Registers the given server channel. Must be called before the
+     * acceptor is started.
+     *
+     * @param channel
+     * @param implicitTls true if TLS is started before the greeting.
+     * @throws IOException
+     */
+    void register(ServerSocketChannel channel, boolean implicitTls)
+            throws IOException {
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT, implicitTls);
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                long timeout = 0;
+                if (pausedUntil > 0) {
+                    timeout = pausedUntil - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        resume();
+                        timeout = 0;
+                    }
+                }
+                selector.select(timeout);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey selKey = it.next();
+                    it.remove();
+                    if (selKey.isValid() && selKey.isAcceptable()) {
+                        accept(selKey);
+                    }
+                }
+            } catch (ClosedSelectorException ex) {
+                break;
+            } catch (IOException | CancelledKeyException ex) {
+                Log.get().log(Level.WARNING, "Acceptor.run(): {0}", ex);
+            }
+        }
+    }
+
+    private void accept(SelectionKey selKey) {
+        final ServerSocketChannel channel = (ServerSocketChannel) selKey.channel();
+        final boolean implicitTls = (Boolean) selKey.attachment();
+
+        for (int n = 0; n < MAX_ACCEPTS; n++) {
+            if (rateLimit != null && !rateLimit.tryAcquire()) {
+                pause(rateLimit.millisUntilAvailable());
+                return;
+            }
+
+            SocketChannel socketChannel;
+            try {
+                socketChannel = channel.accept();
+            } catch (IOException ex) {
+                if (!channel.isOpen()) {
+                    return; // Daemon was shut down
+                }
+                // Under heavy load an IOException "Too many open files" may
+                // be thrown; we back off a little to give the workers some
+                // time to close connections.
+                backoff = Math.min(MAX_BACKOFF, Math.max(MIN_BACKOFF, backoff * 2));
+                Log.get().log(Level.SEVERE,
+                        "IOException while accepting connection, pausing {0} ms: {1}",
+                        new Object[] { backoff, ex.getMessage() });
+                if (rateLimit != null) {
+                    rateLimit.release();
+                }
+                pause(backoff);
+                return;
+            }
+
+            if (socketChannel == null) {
+                // No more pending connections
+                if (rateLimit != null) {
+                    rateLimit.release();
+                }
+                return;
+            }
+
+            backoff = 0;
+            nntpDaemon.connected(socketChannel, implicitTls);
+        }
+    }
+
+    /**
+     * Disables the accept events of all server channels for the given time.
+     */
+    private void pause(long millis) {
+        for (SelectionKey selKey : selector.keys()) {
+            if (selKey.isValid()) {
+                selKey.interestOps(0);
+            }
+        }
+        pausedUntil = System.currentTimeMillis() + millis;
+    }
+
+    private void resume() {
+        for (SelectionKey selKey : selector.keys()) {
+            if (selKey.isValid()) {
+                selKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }
+        pausedUntil = 0;
+    }
+
+    @Override
+    public void dispose() {
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            Log.get().log(Level.WARNING, ex.getLocalizedMessage(), ex);
+        }
+    }
+}
@@ -19,51 +19,65 @@
 package org.sonews.daemon.sync;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 
-import org.sonews.daemon.Connections;
 import org.sonews.daemon.DaemonRunner;
-import org.sonews.daemon.NNTPConnection;
-import org.sonews.daemon.SocketChannelWrapperFactory;
 import org.sonews.util.Log;
 
 /**
- * A Thread task listening for OP_READ events from SocketChannels.
+ * A Thread task listening for OP_READ events from SocketChannels. The reading
+ * itself is done by a ConnectionWorker in the mailbox of the connection.
  *
  * @author Christian Lins
  * @since sonews/0.5.0
  */
 class ChannelReader extends DaemonRunner {
 
-    private static final ChannelReader instance = new ChannelReader();
+    private final Selector selector;
+    /** Connections waiting to be registered with the selector */
+    private final Queue<SynchronousNNTPConnection> pendingRegistrations =
+            new ConcurrentLinkedQueue<>();
 
     /**
-     * @return Active ChannelReader instance.
+     * @param selector The selector which is used by this reader to determine
+     *                 the channel to read from.
      */
-    public static ChannelReader getInstance() {
-        return instance;
-    }
-
-    private Selector selector = null;
-
-    protected ChannelReader() {
+    ChannelReader(final Selector selector) {
+        this.selector = selector;
     }
 
     /**
-     * Sets the selector which is used by this reader to determine the channel
-     * to read from.
+     * Registers the channel of the given connection for OP_READ events with
+     * the selector of this reader. The registration itself is done by the
+     * reader thread.
      *
-     * @param selector
+     * @param conn
      */
-    public void setSelector(final Selector selector) {
-        this.selector = selector;
+    void register(final SynchronousNNTPConnection conn) {
+        pendingRegistrations.add(conn);
+        selector.wakeup();
+    }
+
+    private void processRegistrations() {
+        SynchronousNNTPConnection conn;
+        while ((conn = pendingRegistrations.poll()) != null) {
+            SocketChannel channel = (SocketChannel) conn.getSocketChannel()
+                    .getWrapier();
+            try {
+                channel.register(selector, SelectionKey.OP_READ, conn);
+            } catch (IOException ex) {
+                Log.get().log(Level.WARNING,
+                        "Could not register channel for reading: {0}", ex);
+            }
+        }
     }
 
     /**
@@ -75,113 +89,48 @@ class ChannelReader extends DaemonRunner {
 
         while (daemon.isRunning()) {
             try {
+                processRegistrations();
+
                 // select() blocks until some SelectableChannels are ready for
-                // processing. There is no need to lock the selector as we have
-                // only
-                // one thread per selector.
+                // processing or a new channel is to be registered. There is no
+                // need to lock the selector as we have only one thread per
+                // selector.
                 selector.select();
 
-                // Get list of selection keys with pending events.
-                // Note: the selected key set is not thread-safe
-                SocketChannel channel = null;
-                NNTPConnection conn = null;
+                // Process all selection keys with pending events.
+                // Note: the selected key set is not thread-safe, but only
+                // this thread uses it
                 final Set<SelectionKey> selKeys = selector.selectedKeys();
-                SelectionKey selKey = null;
-
-                synchronized (selKeys) {
-                    Iterator<SelectionKey> it = selKeys.iterator();
-
-                    // Process the first pending event
-                    while (it.hasNext()) {
-                        selKey = it.next();
-                        channel = (SocketChannel) selKey.channel();
-                        conn = Connections.getInstance().get(
-                                new SocketChannelWrapperFactory(channel).create());
-
-                        // Because we cannot lock the selKey as that would cause
-                        // a deadlock
-                        // we lock the connection. To preserve the order of the
-                        // received
-                        // byte blocks a selection key for a connection that has
-                        // pending
-                        // read events is skipped.
-                        if (conn == null || conn.tryReadLock()) {
-                            // Remove from set to indicate that it's being
-                            // processed
-                            it.remove();
-                            if (conn != null) {
-                                break; // End while loop
-                            }
-                        } else {
-                            selKey = null;
-                            channel = null;
-                            conn = null;
-                        }
+                Iterator<SelectionKey> it = selKeys.iterator();
+                while (it.hasNext()) {
+                    SelectionKey selKey = it.next();
+                    it.remove();
+                    try {
+                        processReadyKey(selKey);
+                    } catch (CancelledKeyException ex) {
+                        Log.get().log(Level.INFO, "ChannelReader.run(): {0}", ex);
                     }
                 }
-
-                // Do not lock the selKeys while processing because this causes
-                // a deadlock in sun.nio.ch.SelectorImpl.lockAndDoSelect()
-                if (selKey != null && channel != null && conn != null) {
-                    processSelectionKey(conn, channel, selKey);
-                    conn.unlockReadLock();
-                }
-
-            } catch (CancelledKeyException ex) {
-                Log.get().log(Level.WARNING, "ChannelReader.run(): {0}", ex);
-                Log.get().log(Level.INFO, "", ex);
-            } catch (IOException | InterruptedException ex) {
+            } catch (IOException ex) {
                 Log.get().log(Level.WARNING, ex.getLocalizedMessage(), ex);
             }
-
-            // Eventually wait for a register operation
-            synchronized (SynchronousNNTPDaemon.RegisterGate) {
-                // Do nothing; FindBugs may warn about an empty synchronized
-                // statement, but we cannot use a wait()/notify() mechanism
-                // here.
-                // If we used something like RegisterGate.wait() we block here
-                // until the NNTPDaemon calls notify(). But the daemon only
-                // calls notify() if itself is NOT blocked in the listening
-                // socket.
-            }
         } // while(isRunning())
     }
 
-    private void processSelectionKey(final NNTPConnection connection,
-            final SocketChannel socketChannel, final SelectionKey selKey)
-            throws InterruptedException, IOException {
-        assert selKey != null;
-        assert selKey.isReadable();
-
-        // Some bytes are available for reading
-        if (selKey.isValid()) {
-            // Lock the channel
-            // synchronized(socketChannel)
-            {
-                // Read the data into the appropriate buffer
-                ByteBuffer buf = connection.getInputBuffer();
-                int read = -1;
-                try {
-                    read = socketChannel.read(buf);
-                } catch (IOException ex) {
-                    // The connection was probably closed by the remote host
-                    // in a non-clean fashion
-                    Log.get().log(Level.INFO,
-                            "ChannelReader.processSelectionKey(): {0}", ex);
-                } catch (Exception ex) {
-                    Log.get().log(Level.WARNING,
-                            "ChannelReader.processSelectionKey(): {0}", ex);
-                }
+    private void processReadyKey(final SelectionKey selKey) {
+        final SynchronousNNTPConnection conn =
+                (SynchronousNNTPConnection) selKey.attachment();
 
-                if (read == -1) { // End of stream
-                    selKey.cancel();
-                } else if (read > 0) { // If some data was read
-                    ConnectionWorker.addChannel(socketChannel);
-                }
-            }
-        } else {
+        if (!selKey.isValid()) {
             // Should not happen
             Log.get().log(Level.SEVERE, "Should not happen: {0}", selKey.toString());
+            return;
         }
+
+        // Disable read events until the worker has read and processed the
+        // available data, so that the received byte blocks are processed in
+        // order and the selector does not report this channel again.
+        selKey.interestOps(0);
+        conn.getMailbox().execute(new ConnectionWorker(conn, selKey));
     }
 }
@@ -25,12 +25,13 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 
-import org.sonews.daemon.Connections;
+import org.sonews.daemon.ChannelLineBuffers;
 import org.sonews.daemon.DaemonRunner;
 import org.sonews.daemon.NNTPConnection;
-import org.sonews.daemon.SocketChannelWrapperFactory;
 import org.sonews.util.Log;
 
 /**
@@ -41,23 +42,52 @@ import org.sonews.util.Log;
  */
 class ChannelWriter extends DaemonRunner {
 
-    private static final ChannelWriter instance = new ChannelWriter();
+    private final Selector selector;
+    /** Connections waiting to be registered with the selector */
+    private final Queue<SynchronousNNTPConnection> pendingRegistrations =
+            new ConcurrentLinkedQueue<>();
 
-    public static ChannelWriter getInstance() {
-        return instance;
-    }
-
-    private Selector selector = null;
-
-    protected ChannelWriter() {
+    /**
+     * @param selector The selector which is used by this writer to determine
+     *                 the channels that are ready for writing.
+     */
+    ChannelWriter(final Selector selector) {
+        this.selector = selector;
     }
 
     public Selector getSelector() {
         return this.selector;
     }
 
-    public void setSelector(final Selector selector) {
-        this.selector = selector;
+    /**
+     * Registers the channel of the given connection for OP_WRITE events with
+     * the selector of this writer. The registration itself is done by the
+     * writer thread, which then passes the SelectionKey to the connection.
+     * Output that was queued before is written as soon as the registration
+     * is done.
+     *
+     * @param conn
+     */
+    void register(final SynchronousNNTPConnection conn) {
+        pendingRegistrations.add(conn);
+        selector.wakeup();
+    }
+
+    private void processRegistrations() {
+        SynchronousNNTPConnection conn;
+        while ((conn = pendingRegistrations.poll()) != null) {
+            SocketChannel channel = (SocketChannel) conn.getSocketChannel()
+                    .getWrapier();
+            try {
+                // Register with OP_WRITE, so that pending output is written
+                // and the interest is cleared if there is none
+                conn.setWriteSelectionKey(channel.register(selector,
+                        SelectionKey.OP_WRITE, conn));
+            } catch (IOException ex) {
+                Log.get().log(Level.WARNING,
+                        "Could not register channel for writing: {0}", ex);
+            }
+        }
     }
 
     @Override
@@ -66,59 +96,41 @@ class ChannelWriter extends DaemonRunner {
 
         while (daemon.isRunning()) {
             try {
-                SelectionKey selKey = null;
-                SocketChannel socketChannel = null;
-                NNTPConnection connection = null;
+                processRegistrations();
 
                 // select() blocks until some SelectableChannels are ready for
-                // processing. There is no need to synchronize the selector as
-                // we have only one thread per selector.
+                // processing or a new channel is to be registered. There is no
+                // need to synchronize the selector as we have only one thread
+                // per selector.
                 selector.select(); // The return value of select can be ignored
 
-                // Get list of selection keys with pending OP_WRITE events.
+                // Process all selection keys with pending OP_WRITE events.
                 // The keySET is not thread-safe whereas the keys itself are.
                 Iterator<SelectionKey> it = selector.selectedKeys().iterator();
 
                 while (it.hasNext()) {
-                    // We remove the first event from the set and store it for
-                    // later processing.
-                    selKey = it.next();
-                    socketChannel = (SocketChannel) selKey.channel();
-                    connection = Connections.getInstance().get(
-                            new SocketChannelWrapperFactory(socketChannel).create());
-
+                    SelectionKey selKey = it.next();
                     it.remove();
-                    if (connection != null) {
-                        break;
-                    } else {
-                        selKey = null;
-                    }
-                }
 
-                if (selKey != null) {
+                    SocketChannel socketChannel = (SocketChannel) selKey.channel();
+                    NNTPConnection connection = (NNTPConnection) selKey.attachment();
+
                     try {
                         // Process the selected key.
                         // As there is only one OP_WRITE key for a given
-                        // channel, we need
-                        // not to synchronize this processing to retain the
-                        // order.
+                        // channel, we need not to synchronize this processing
+                        // to retain the order.
                         processSelectionKey(connection, socketChannel, selKey);
+                    } catch (CancelledKeyException ex) {
+                        Log.get().log(Level.INFO, "ChannelWriter.run(): {0}", ex);
                     } catch (IOException ex) {
                         Log.get().log(Level.WARNING, "Error writing to channel: {0}", ex);
 
                         // Cancel write events for this channel
                         selKey.cancel();
-                        if (connection != null) {
-                            connection.close();
-                        }
+                        connection.close();
                     }
                 }
-
-                // Eventually wait for a register operation
-                synchronized (SynchronousNNTPDaemon.RegisterGate) { /* do nothing */
-                }
-            } catch (CancelledKeyException ex) {
-                Log.get().log(Level.INFO, "ChannelWriter.run(): {0}", ex);
             } catch (IOException | InterruptedException ex) {
                 ex.printStackTrace();
             }
@@ -135,39 +147,44 @@ class ChannelWriter extends DaemonRunner {
 
         // SocketChannel is ready for writing
         if (selKey.isValid()) {
+            final ChannelLineBuffers buffers = connection.getBuffers();
+
             // Lock the socket channel
             synchronized (socketChannel) {
-                // Get next output buffer
-                ByteBuffer buf = connection.getOutputBuffer();
-                if (buf == null) {
+                // Get all pending output buffers
+                ByteBuffer[] bufs = buffers.getOutputBuffers();
+                if (bufs.length == 0) {
                     // Currently we have nothing to write, so we stop the
-                    // writeable
-                    // events until we have something to write to the socket
-                    // channel
-                    // selKey.cancel();
+                    // writeable events until we have something to write to
+                    // the socket channel
                     selKey.interestOps(0);
+                    // A buffer may have been added after our check and
+                    // before the interest was cleared
+                    if (!buffers.isOutputBufferEmpty()) {
+                        selKey.interestOps(SelectionKey.OP_WRITE);
+                    }
                     // Update activity timestamp to prevent too early
-                    // disconnects
-                    // on slow client connections
+                    // disconnects on slow client connections
                     connection.setLastActivity(System.currentTimeMillis());
                     return;
                 }
 
-                while (buf != null) // There is data to be send
+                while (bufs.length > 0) // There is data to be send
                 {
-                    // Write buffer to socket channel; this method does not
-                    // block
-                    if (socketChannel.write(buf) <= 0) {
-                        // Perhaps there is data to be written, but the
-                        // SocketChannel's buffer is full, so we stop writing
-                        // to until the next event.
+                    // Write as many buffers as possible with one system call;
+                    // this method does not block
+                    socketChannel.write(bufs);
+                    buffers.recycleWrittenBuffers();
+
+                    if (bufs[bufs.length - 1].hasRemaining()) {
+                        // There is data to be written, but the SocketChannel's
+                        // buffer is full, so we stop writing until the next
+                        // event.
                         break;
-                    } else {
-                        // Retrieve next buffer if available; method may return
-                        // the same
-                        // buffer instance if it still have some bytes remaining
-                        buf = connection.getOutputBuffer();
                     }
+
+                    // Retrieve buffers added in the meantime
+                    bufs = buffers.getOutputBuffers();
                 }
             }
         } else {
@@ -18,85 +18,104 @@
 
 package org.sonews.daemon.sync;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.logging.Level;
 
-import org.sonews.daemon.ChannelLineBuffers;
 import org.sonews.daemon.Connections;
-import org.sonews.daemon.DaemonRunner;
-import org.sonews.daemon.NNTPConnection;
-import org.sonews.daemon.SocketChannelWrapperFactory;
 import org.sonews.util.Log;
 
 /**
- * Does most of the work: parsing input, talking to client and Database.
+ * Does most of the work: reading from the client channel, parsing input,
+ * talking to client and Database. A ConnectionWorker is submitted to the
+ * mailbox of its connection by the ChannelReader, which has disabled the
+ * read events of the channel beforehand; the read events are enabled again
+ * after all complete lines have been processed. So there is never more than
+ * one ConnectionWorker per connection and the lines are processed in order.
  *
  * @author Christian Lins
  * @since sonews/0.5.0
  */
-class ConnectionWorker extends DaemonRunner {
-
-    // 256 pending events should be enough
-    private static final ArrayBlockingQueue<SocketChannel> pendingChannels =
-            new ArrayBlockingQueue<>(256, true);
+class ConnectionWorker implements Runnable {
 
     /**
-     * Registers the given channel for further event processing.
-     *
-     * @param channel
+     * Number of times the channel is read again before the worker waits for
+     * a read event, so that a client sending many pipelined commands does not
+     * occupy the worker thread for too long.
      */
-    public static void addChannel(SocketChannel channel)
-            throws InterruptedException {
-        pendingChannels.put(channel);
+    private static final int MAX_READS = 16;
+
+    private final SynchronousNNTPConnection conn;
+    private final SelectionKey readSelKey;
+
+    ConnectionWorker(final SynchronousNNTPConnection conn,
+            final SelectionKey readSelKey) {
+        this.conn = conn;
+        this.readSelKey = readSelKey;
     }
 
     @Override
     public void run() {
-        while (daemon.isRunning()) {
-            try {
-                // Retrieve and remove if available, otherwise wait.
-                SocketChannel channel = pendingChannels.take();
-
-                if (channel != null) {
-                    // Connections.getInstance().get() MAY return null
-                    NNTPConnection conn = Connections.getInstance().get(
-                            new SocketChannelWrapperFactory(channel).create());
+        for (int n = 0; n < MAX_READS; n++) {
+            final ByteBuffer inputBuffer = conn.getBuffers().getReadBuffer();
+            if (inputBuffer == null) {
+                // Buffers were already recycled, the connection is closed
+                return;
+            }
 
-                    if (conn == null) {
-                        Log.get().log(Level.FINEST, "conn is null");
-                        addChannel(channel);
-                        continue;
-                    }
+            int read = -1;
+            try {
+                read = ((SocketChannel) readSelKey.channel()).read(inputBuffer);
+            } catch (IOException ex) {
+                // The connection was probably closed by the remote host
+                // in a non-clean fashion
+                Log.get().log(Level.INFO, "ConnectionWorker.run(): {0}", ex);
+            }
 
-                    // Try to lock the connection object
-                    if (conn.tryReadLock()) {
-                        ByteBuffer buf = conn.getBuffers().nextInputLine();
-                        while (buf != null) // Complete line was received
-                        {
-                            final byte[] line = new byte[buf.limit()];
-                            buf.get(line);
-                            ChannelLineBuffers.recycleBuffer(buf);
+            if (read == -1) { // End of stream
+                readSelKey.cancel();
+                Connections.getInstance().remove(conn);
+                try {
+                    conn.close();
+                } catch (IOException ex) {
+                    Log.get().log(Level.WARNING, "ConnectionWorker.run(): {0}", ex);
+                }
+                return;
+            }
 
-                            // Here is the actual work done
-                            conn.lineReceived(line);
+            if (read == 0 && n > 0) {
+                break; // No more pipelined commands
+            }
 
-                            // Read next line as we could have already received
-                            // the next line
-                            buf = conn.getBuffers().nextInputLine();
-                        }
-                        conn.unlockReadLock();
-                    } else {
-                        addChannel(channel);
-                    }
-                }
-            } catch (InterruptedException ex) {
-                Log.get().log(Level.INFO, "ConnectionWorker interrupted: {0}", ex);
-            } catch (Exception ex) {
+            try {
+                // Here is the actual work done: all commands received so
+                // far are processed and their responses are written at once
+                conn.processInput();
+            } catch (RuntimeException ex) {
                 Log.get().log(Level.SEVERE, "Exception in ConnectionWorker: {0}", ex);
                 ex.printStackTrace();
             }
-        } // end while(isRunning())
+
+            // Neither process nor read further commands until a slow client
+            // has received enough of the output; the ChannelWriter resumes
+            // the connection, the worker thread is not kept waiting
+            if (conn.getBuffers().resumeWhenDrained(() -> conn.getMailbox()
+                    .execute(new ConnectionWorker(conn, readSelKey)))) {
+                return;
+            }
+        }
+
+        // Wait for more data from the client; an idle connection holds no
+        // input buffer
+        conn.getBuffers().releaseIdleInput();
+        try {
+            readSelKey.interestOps(SelectionKey.OP_READ);
+            readSelKey.selector().wakeup();
+        } catch (CancelledKeyException ex) {
+            Log.get().log(Level.FINE, "ConnectionWorker.run(): {0}", ex);
+        }
     }
 }
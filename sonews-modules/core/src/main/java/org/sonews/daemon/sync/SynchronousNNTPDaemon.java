@@ -21,31 +21,40 @@ package org.sonews.daemon.sync;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.nio.channels.CancelledKeyException;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectionKey;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 
 import org.sonews.config.Config;
 import org.sonews.daemon.Connections;
 import org.sonews.daemon.DaemonRunner;
 import org.sonews.daemon.DaemonThread;
-import org.sonews.daemon.NNTPConnection;
 import org.sonews.daemon.NNTPDaemonRunnable;
+import org.sonews.daemon.SerialExecutor;
 import org.sonews.daemon.SocketChannelWrapperFactory;
+import org.sonews.daemon.TlsContext;
 import org.sonews.util.Log;
-import org.springframework.beans.BeansException;
+import org.sonews.util.TokenBucket;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
 
 /**
- * NNTP daemon using SelectableChannels.
+ * NNTP daemon using SelectableChannels. The daemon runs a number of
+ * ChannelReader/ChannelWriter pairs, each with its own Selectors; every
+ * connection is pinned to one of the pairs. The connections are accepted by
+ * one or more Acceptors; if sonews.tls.port is set, the acceptors also
+ * accept connections using implicit TLS on that port.
  *
  * @author Christian Lins
  * @since sonews/0.5.0
@@ -53,12 +62,16 @@ import org.springframework.stereotype.Component;
 @Component
 public class SynchronousNNTPDaemon extends DaemonRunner implements NNTPDaemonRunnable {
 
-    public static final Object RegisterGate = new Object();
-
     @Autowired
     private ApplicationContext context;
     private int port;
-    private ServerSocket serverSocket = null;
+    private final List<ServerSocketChannel> serverChannels = new CopyOnWriteArrayList<>();
+    private final List<Acceptor> acceptors = new CopyOnWriteArrayList<>();
+    private ChannelReader[] readers;
+    private ChannelWriter[] writers;
+    private ExecutorService workers;
+    private int maxConnections;
+    private ByteBuffer overloadResponse;
 
     public SynchronousNNTPDaemon() {
     }
@@ -68,129 +81,192 @@ public class SynchronousNNTPDaemon extends DaemonRunner implements NNTPDaemonRun
         this.port = port;
     }
 
+    /**
+     * StandardSocketOptions.SO_REUSEPORT is available since Java 9 and not
+     * on every platform.
+     *
+     * @return The option or null if it is not available.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            SocketOption<Boolean> option = (SocketOption<Boolean>)
+                    StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            return channel.supportedOptions().contains(option) ? option : null;
+        } catch (ReflectiveOperationException | IOException ex) {
+            return null;
+        }
+    }
+
+    private ServerSocketChannel openServerChannel(int port,
+            SocketOption<Boolean> reusePort) throws IOException {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        serverChannels.add(channel);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (reusePort != null) {
+            channel.setOption(reusePort, true);
+        }
+        channel.bind(new InetSocketAddress(port));
+        return channel;
+    }
+
     @Override
     public void run() {
         try {
             Log.get().log(Level.INFO, "Server listening on port {0}", port);
             
-            // Create a Selector that handles the SocketChannel multiplexing
-            final Selector readSelector = Selector.open();
-            final Selector writeSelector = Selector.open();
-
-            // Start working threads
+            // Start working threads; they are shared by the mailboxes of all
+            // connections
             final int workerThreads = Math.max(4, 2 *
                     Runtime.getRuntime().availableProcessors());
-            DaemonThread[] cworkers = new DaemonThread[workerThreads];
-            for (int n = 0; n < workerThreads; n++) {
-                cworkers[n] = new DaemonThread(new ConnectionWorker());
-                cworkers[n].start();
-            }
+            workers = Executors.newFixedThreadPool(workerThreads,
+                    DaemonThread::new);
             Log.get().log(Level.INFO, "{0} worker threads started.", workerThreads);
 
-            ChannelWriter.getInstance().setSelector(writeSelector);
-            ChannelReader.getInstance().setSelector(readSelector);
-            new DaemonThread(ChannelWriter.getInstance()).start();
-            new DaemonThread(ChannelReader.getInstance()).start();
-
-            final ServerSocketChannel serverSocketChannel = ServerSocketChannel
-                    .open();
-            serverSocketChannel.configureBlocking(true); // Set to blocking mode
-
-            // Configure ServerSocket; bind to socket...
-            serverSocket = serverSocketChannel.socket();
-            serverSocket.bind(new InetSocketAddress(this.port));
-
-            while (daemon.isRunning()) {
-                SocketChannel socketChannel;
-
-                try {
-                    // As we set the server socket channel to blocking mode the
-                    // accept()
-                    // method will block.
-                    socketChannel = serverSocketChannel.accept();
-                    socketChannel.configureBlocking(false);
-                    assert socketChannel.isConnected();
-                    assert socketChannel.finishConnect();
-                } catch (IOException ex) {
-                    // Under heavy load an IOException "Too many open files may
-                    // be thrown. It most cases we should slow down the
-                    // connection accepting, to give the worker threads some
-                    // time to process work.
-                    Log.get().log(
-                            Level.SEVERE, "IOException while accepting connection: {0}", ex.getMessage());
-                    Log.get().info(
-                            "Connection accepting sleeping for seconds...");
-                    Thread.sleep(5000); // 5 seconds
-                    continue;
+            // Create the reader/writer pairs, each with its own Selectors
+            // that handle the SocketChannel multiplexing
+            final int selectors = Math.max(1, Config.inst().get(
+                    Config.SELECTORS,
+                    Runtime.getRuntime().availableProcessors()));
+            readers = new ChannelReader[selectors];
+            writers = new ChannelWriter[selectors];
+            for (int n = 0; n < selectors; n++) {
+                writers[n] = new ChannelWriter(Selector.open());
+                readers[n] = new ChannelReader(Selector.open());
+                new DaemonThread(writers[n]).start();
+                new DaemonThread(readers[n]).start();
+            }
+            Log.get().log(Level.INFO, "{0} reader/writer pairs started.", selectors);
+
+            maxConnections = Config.inst().get(Config.CONNECTIONS_MAX, 0);
+            overloadResponse = ByteBuffer.wrap(("400 "
+                    + Config.inst().get(Config.HOSTNAME, "localhost")
+                    + " too many connections, try again later\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+
+            final int rate = Config.inst().get(Config.ACCEPT_RATE, 0);
+            final TokenBucket rateLimit = rate > 0 ? new TokenBucket(rate,
+                    Config.inst().get(Config.ACCEPT_BURST, rate)) : null;
+
+            // Every acceptor binds its own server sockets, the kernel
+            // distributes the connections among them
+            int acceptorCount = Math.max(1, Config.inst().get(Config.ACCEPTORS, 1));
+            SocketOption<Boolean> reusePort = null;
+            if (acceptorCount > 1) {
+                reusePort = getReusePortOption();
+                if (reusePort == null) {
+                    Log.get().log(Level.WARNING,
+                            "SO_REUSEPORT is not supported, using one acceptor");
+                    acceptorCount = 1;
                 }
-                
-                //FIXME conn should be NNTPConnection
-                final SynchronousNNTPConnection conn = (SynchronousNNTPConnection)
-                        context.getBean("syncNNTPConnection", NNTPConnection.class);
-                conn.setChannelWrapper(new SocketChannelWrapperFactory(socketChannel).create());
-                Connections.getInstance().add(conn);
-
-                try {
-                    SelectionKey selKeyWrite = registerSelector(writeSelector,
-                            socketChannel, SelectionKey.OP_WRITE);
-                    registerSelector(readSelector, socketChannel,
-                            SelectionKey.OP_READ);
-
-                    Log.get().log(
-                            Level.INFO, "Connected: {0}", socketChannel.socket()
-                                    .getRemoteSocketAddress());
-
-                    // Set write selection key and send hello to client
-                    conn.setWriteSelectionKey(selKeyWrite);
-                    conn.println("200 "
-                            + Config.inst().get(Config.HOSTNAME, "localhost")
-                            + " <unknown version>" // + Application.VERSION
-                            + " news server ready - (posting ok).");
-                } catch (CancelledKeyException cke) {
-                    Log.get().log(
-                            Level.WARNING, "CancelledKeyException {0} was thrown: {1}",
-                            new Object[]{cke.getMessage(), socketChannel.socket()});
-                } catch (ClosedChannelException cce) {
-                    Log.get().log(
-                            Level.WARNING, "ClosedChannelException {0} was thrown: {1}",
-                            new Object[]{cce.getMessage(), socketChannel.socket()});
+            }
+
+            final int tlsPort = Config.inst().get(Config.TLS_PORT, 0);
+            final boolean implicitTls = tlsPort > 0 && TlsContext.isAvailable();
+            for (int n = 0; n < acceptorCount; n++) {
+                Acceptor acceptor = new Acceptor(this, rateLimit);
+                acceptors.add(acceptor);
+                acceptor.register(openServerChannel(port, reusePort), false);
+                if (implicitTls) {
+                    acceptor.register(openServerChannel(tlsPort, reusePort), true);
                 }
             }
+            if (implicitTls) {
+                Log.get().log(Level.INFO, "Server listening on port {0} (TLS)", tlsPort);
+            }
+
+            // The first acceptor runs in this thread
+            for (int n = 1; n < acceptorCount; n++) {
+                new DaemonThread(acceptors.get(n)).start();
+            }
+            acceptors.get(0).run();
         } catch (BindException ex) {
             // Could not bind to socket; this is a fatal, so perform a shutdown
             Log.get().log(Level.SEVERE, ex.getLocalizedMessage() + " -> shutdown sonews", ex);
             daemon.requestShutdown();
-        } catch (IOException | InterruptedException | BeansException ex) {
+        } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
 
-    @Override
-    public void dispose() {
-        if (this.serverSocket != null) {
+    /**
+     * Called by the Acceptors for every new client connection.
+     *
+     * @param socketChannel
+     * @param implicitTls true if TLS is started before the greeting.
+     */
+    void connected(SocketChannel socketChannel, boolean implicitTls) {
+        try {
+            socketChannel.configureBlocking(false);
+
+            if (maxConnections > 0
+                    && Connections.getInstance().size() >= maxConnections) {
+                shed(socketChannel, implicitTls);
+                return;
+            }
+
+            final SynchronousNNTPConnection conn = new SynchronousNNTPConnection(context);
+            conn.setChannelWrapper(new SocketChannelWrapperFactory(socketChannel).create());
+            conn.setMailbox(new SerialExecutor(workers));
+            Connections.getInstance().add(conn);
+            if (implicitTls) {
+                // The greeting is held back until the handshake has finished
+                conn.getBuffers().startTls(TlsContext.createEngine());
+            }
+
+            Log.get().log(
+                    Level.INFO, "Connected: {0}", socketChannel.socket()
+                            .getRemoteSocketAddress());
+
+            // Queue hello for the client; it is sent as soon as the
+            // writer has registered the channel
+            conn.println("200 "
+                    + Config.inst().get(Config.HOSTNAME, "localhost")
+                    + " <unknown version>" // + Application.VERSION
+                    + " news server ready - (posting ok).");
+
+            // Pin the connection to one of the reader/writer pairs
+            int pair = Math.floorMod(socketChannel.hashCode(), readers.length);
+            writers[pair].register(conn);
+            readers[pair].register(conn);
+        } catch (IOException ex) {
+            Log.get().log(Level.WARNING, "Error accepting connection: {0}", ex);
             try {
-                this.serverSocket.close();
-            } catch (IOException ex) {
-                Log.get().log(Level.WARNING, ex.getLocalizedMessage(), ex);
+                socketChannel.close();
+            } catch (IOException ex2) {
+                Log.get().log(Level.INFO, ex2.getLocalizedMessage());
             }
         }
     }
 
-    public static SelectionKey registerSelector(final Selector selector,
-            final SocketChannel channel, final int op)
-            throws CancelledKeyException, ClosedChannelException {
-        // Register the selector at the channel, so that it will be notified
-        // on the socket's events
-        synchronized (RegisterGate) {
-            // Wakeup the currently blocking reader/writer thread; we have
-            // locked the RegisterGate to prevent the awakened thread to block again
-            selector.wakeup();
-
-            // Lock the selector to prevent the waiting worker threads going
-            // into selector.select() which would block the selector.
-            synchronized (selector) {
-                return channel.register(selector, op, null);
+    /**
+     * Rejects a connection because the server is over capacity. The
+     * response is written without blocking; if the socket buffer is full
+     * the client just sees the connection closed. Clients using implicit
+     * TLS are disconnected without a response.
+     */
+    private void shed(SocketChannel socketChannel, boolean implicitTls)
+            throws IOException {
+        try {
+            if (!implicitTls) {
+                socketChannel.write(overloadResponse.duplicate());
+            }
+        } finally {
+            socketChannel.close();
+        }
+        Log.get().log(Level.INFO, "Rejected connection, {0} clients connected",
+                maxConnections);
+    }
+
+    @Override
+    public void dispose() {
+        for (ServerSocketChannel channel : serverChannels) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Log.get().log(Level.WARNING, ex.getLocalizedMessage(), ex);
             }
         }
+        acceptors.forEach(Acceptor::dispose);
     }
 }
@@ -0,0 +1,75 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Result of Storage.getArticleBuffer(): either the article in the format it
+ * is sent to the client, or the article as it was loaded by the backend
+ * while looking for the buffer, so that the caller need not load it again.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public final class ArticleBuffer {
+
+    /** The backend has no article with the requested Message-ID */
+    public static final ArticleBuffer NOT_FOUND = new ArticleBuffer(null, null);
+
+    private final ByteBuffer buffer;
+    private final Article article;
+
+    private ArticleBuffer(ByteBuffer buffer, Article article) {
+        this.buffer = buffer;
+        this.article = article;
+    }
+
+    /**
+     * @param buffer Read-only buffer including the terminating line with a
+     *               single dot.
+     * @return The result holding the buffer.
+     */
+    public static ArticleBuffer of(ByteBuffer buffer) {
+        return new ArticleBuffer(buffer, null);
+    }
+
+    /**
+     * @param article Article that is not available as buffer.
+     * @return The result holding the article.
+     */
+    public static ArticleBuffer of(Article article) {
+        return new ArticleBuffer(null, article);
+    }
+
+    /**
+     * @return The buffer or null if the article is not available as buffer.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return The loaded article or null if the buffer is available or the
+     *         article does not exist.
+     */
+    public Article getArticle() {
+        return article;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+
+import org.sonews.config.Config;
+import org.sonews.util.Log;
+
+/**
+ * Directory of files containing articles exactly as they are sent to the
+ * client by the ARTICLE command: header, empty line, body and the terminating
+ * dot line. Storage backends may keep such a spool besides their database and
+ * serve ARTICLE and BODY requests from it; the files are memory mapped, so
+ * the article data is written to the client without being copied to the Java
+ * heap.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public final class ArticleSpool {
+
+    /** Files smaller than this are read instead of being mapped */
+    static final int MIN_MAPPED_SIZE = 16 * 1024;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] END = {'\r', '\n', '.', '\r', '\n'};
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static volatile ArticleSpool instance;
+
+    /**
+     * @return The ArticleSpool in the directory configured with
+     *         sonews.storage.spool or null if no spool is configured.
+     */
+    public static ArticleSpool getInstance() {
+        ArticleSpool spool = instance;
+        if (spool == null) {
+            String dir = Config.inst().get(Config.LEVEL_FILE,
+                    Config.STORAGE_SPOOL, "");
+            if (dir.isEmpty()) {
+                return null;
+            }
+            spool = new ArticleSpool(Paths.get(dir));
+            instance = spool;
+        }
+        return spool;
+    }
+
+    private final Path directory;
+
+    ArticleSpool(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the path of the spool file, the files are distributed over 256
+     * subdirectories by the SHA-1 hash of the Message-ID.
+     */
+    private Path path(String messageID) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(
+                    messageID.getBytes(StandardCharsets.UTF_8));
+            char[] name = new char[hash.length * 2];
+            for (int n = 0; n < hash.length; n++) {
+                name[2 * n] = HEX[(hash[n] >> 4) & 0xF];
+                name[2 * n + 1] = HEX[hash[n] & 0xF];
+            }
+            String file = new String(name);
+            return directory.resolve(file.substring(0, 2)).resolve(file);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // SHA-1 is always available
+        }
+    }
+
+    /**
+     * Writes the given article to the spool. The file is written completely
+     * before it becomes visible to readers.
+     *
+     * @param article
+     * @throws StorageBackendException
+     */
+    public void store(Article article) throws StorageBackendException {
+        Path file = path(article.getMessageID());
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), null, ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp,
+                    StandardOpenOption.WRITE)) {
+                write(channel, ByteBuffer.wrap(article.getHeaderSource()
+                        .getBytes(StandardCharsets.UTF_8)));
+                write(channel, ByteBuffer.wrap(CRLF));
+                write(channel, ByteBuffer.wrap(CRLF));
+                write(channel, ByteBuffer.wrap(article.getBody()));
+                write(channel, ByteBuffer.wrap(END));
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new StorageBackendException(ex);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Returns the article or its body as read-only buffer, terminated by the
+     * line containing a single dot. Large articles are mapped into memory.
+     *
+     * @param messageID
+     * @param bodyOnly true if the header must be skipped.
+     * @return Buffer with the article or null if it is not in the spool.
+     * @throws StorageBackendException
+     */
+    public ByteBuffer get(String messageID, boolean bodyOnly)
+            throws StorageBackendException {
+        try (FileChannel channel = FileChannel.open(path(messageID),
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            ByteBuffer buf;
+            if (size < MIN_MAPPED_SIZE) {
+                buf = ByteBuffer.allocate((int) size);
+                while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                    // Read until the buffer is filled
+                }
+                buf.flip();
+            } else {
+                // The mapping stays valid after the channel is closed
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            if (bodyOnly) {
+                int body = bodyOffset(buf);
+                if (body < 0) {
+                    return null;
+                }
+                buf.position(body);
+            }
+            return buf.slice().asReadOnlyBuffer();
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            throw new StorageBackendException(ex);
+        }
+    }
+
+    /**
+     * @return Index of the first byte after the empty line separating header
+     *         and body, or -1.
+     */
+    static int bodyOffset(ByteBuffer buf) {
+        for (int n = 3; n < buf.limit(); n++) {
+            if (buf.get(n) == '\n' && buf.get(n - 1) == '\r'
+                    && buf.get(n - 2) == '\n' && buf.get(n - 3) == '\r') {
+                return n + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the article from the spool if it exists.
+     *
+     * @param messageID
+     */
+    public void delete(String messageID) {
+        try {
+            Files.deleteIfExists(path(messageID));
+        } catch (IOException ex) {
+            Log.get().log(Level.WARNING, "Could not delete spool file: {0}", ex);
+        }
+    }
+}
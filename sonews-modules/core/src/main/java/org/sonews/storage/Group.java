@@ -160,6 +160,17 @@ public class Group {
         return StorageManager.current().getArticleHeads(this, first, last);
     }
 
+    /**
+     * @param first
+     * @param last
+     * @return Article numbers and overview records of the given range.
+     * @throws StorageBackendException
+     */
+    public List<Pair<Long, String>> getOverview(final long first,
+            final long last) throws StorageBackendException {
+        return StorageManager.current().getOverview(this, first, last);
+    }
+
     public List<Long> getArticleNumbers() throws StorageBackendException {
         return StorageManager.current().getArticleNumbers(id);
     }
@@ -0,0 +1,153 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.storage;
+
+/**
+ * Builds the overview records returned by OVER/XOVER. A record contains the
+ * fields listed by LIST OVERVIEW.FMT separated by tab characters, but not the
+ * article number, so that it can be computed once when the article is
+ * stored and kept by the storage backend.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public final class Overview {
+
+    /** Headers of the overview fields in the order of LIST OVERVIEW.FMT */
+    private static final String[] FIELDS = { "subject", "from", "date",
+            "message-id", "references", "bytes", "lines", "xref" };
+
+    private Overview() {
+    }
+
+    /**
+     * Returns the index of the overview field containing the given header.
+     * The metadata items ":bytes" and ":lines" refer to the Bytes and Lines
+     * fields.
+     *
+     * @param header Header name, case insensitive.
+     * @return Index of the field or -1 if the header is not part of the
+     *         overview.
+     */
+    public static int fieldIndex(String header) {
+        String name = header.startsWith(":") ? header.substring(1) : header;
+        for (int n = 0; n < FIELDS.length; n++) {
+            if (FIELDS[n].equalsIgnoreCase(name)) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a field of the given overview record.
+     *
+     * @param record
+     * @param index  Index of the field, see fieldIndex().
+     * @return Value of the field, empty if the record has no such field.
+     */
+    public static String field(String record, int index) {
+        int start = 0;
+        for (int n = 0; n < index; n++) {
+            start = record.indexOf('\t', start) + 1;
+            if (start == 0) {
+                return "";
+            }
+        }
+        int end = record.indexOf('\t', start);
+        return end < 0 ? record.substring(start) : record.substring(start, end);
+    }
+
+    /**
+     * Returns the given header value as it is sent in overview records and
+     * HDR responses, see appendField().
+     *
+     * @param value
+     * @return
+     */
+    public static String escape(String value) {
+        StringBuilder buf = new StringBuilder(value.length());
+        appendField(buf, value);
+        return buf.toString();
+    }
+
+    /**
+     * Returns the overview record of the given article.
+     *
+     * @param art
+     * @return Overview fields separated by tab characters.
+     */
+    public static String format(Article art) {
+        StringBuilder overview = new StringBuilder(256);
+
+        // An empty subject is kept empty, HDR returns the field as it is
+        appendField(overview, art.getHeader(Headers.SUBJECT)[0]);
+        overview.append('\t');
+        appendField(overview, art.getHeader(Headers.FROM)[0]);
+        overview.append('\t');
+        appendField(overview, art.getHeader(Headers.DATE)[0]);
+        overview.append('\t');
+        appendField(overview, art.getHeader(Headers.MESSAGE_ID)[0]);
+        overview.append('\t');
+        appendField(overview, art.getHeader(Headers.REFERENCES)[0]);
+        overview.append('\t');
+
+        String bytes = art.getHeader(Headers.BYTES)[0];
+        appendField(overview, "".equals(bytes) ? "0" : bytes);
+        overview.append('\t');
+
+        String lines = art.getHeader(Headers.LINES)[0];
+        appendField(overview, "".equals(lines) ? "0" : lines);
+
+        // No trailing tab if there is no Xref
+        String xref = art.getHeader(Headers.XREF)[0];
+        if (!xref.trim().isEmpty()) {
+            overview.append('\t');
+            appendField(overview, xref);
+        }
+
+        return overview.toString();
+    }
+
+    /**
+     * Appends the given header value without leading and trailing whitespace;
+     * CR characters are removed, LF and TAB characters are replaced by a
+     * space.
+     */
+    private static void appendField(StringBuilder overview, String value) {
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        for (int n = start; n < end; n++) {
+            char c = value.charAt(n);
+            if (c == '\r') {
+                continue;
+            } else if (c == '\n' || c == '\t') {
+                c = ' ';
+            }
+            overview.append(c);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.storage;
+
+import java.io.IOException;
+
+/**
+ * Receives the records of a range request from the storage backend one after
+ * another, so that the records need not be collected in memory. The
+ * consumer usually writes the records to the client.
+ *
+ * @param <T> Type of the record.
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+@FunctionalInterface
+public interface RecordConsumer<T> {
+
+    /**
+     * @param articleNumber Number of the article in the requested group.
+     * @param record        Record of the article; null if the request
+     *                      returns article numbers only.
+     * @throws IOException If the record could not be sent to the client;
+     *                     the storage backend stops the request.
+     */
+    void accept(long articleNumber, T record) throws IOException;
+}
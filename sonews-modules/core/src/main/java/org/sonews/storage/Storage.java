@@ -17,7 +17,12 @@
  */
 package org.sonews.storage;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import org.sonews.util.Pair;
 
@@ -46,6 +51,25 @@ public interface Storage {
     Article getArticle(long articleIndex, long groupID)
             throws StorageBackendException;
 
+    /**
+     * Returns the article or its body in the format it is sent to the client,
+     * including the terminating line with a single dot. Backends that can
+     * provide the data without loading it into the heap, e.g. from an
+     * ArticleSpool, should override this method. If they have to load the
+     * article to answer the request they return it or ArticleBuffer.NOT_FOUND,
+     * so that the caller does not query the storage again.
+     *
+     * @param messageID
+     * @param bodyOnly true for the body only, false for the complete article.
+     * @return The buffer, the loaded article, ArticleBuffer.NOT_FOUND or null
+     *         if the backend does not provide articles in this form.
+     * @throws StorageBackendException
+     */
+    default ArticleBuffer getArticleBuffer(String messageID, boolean bodyOnly)
+            throws StorageBackendException {
+        return null;
+    }
+
     List<Pair<Long, Article>> getArticleHeads(Group group, long first,
             long last) throws StorageBackendException;
 
@@ -53,6 +77,131 @@ public interface Storage {
             long end, String header, String pattern)
             throws StorageBackendException;
 
+    /**
+     * Returns the overview records (see Overview) of the articles in the
+     * given range, ordered by article number. Backends should keep the
+     * records instead of building them on every request; the default
+     * implementation builds them from getArticleHeads().
+     *
+     * @param group
+     * @param first
+     * @param last
+     * @return Pairs of article number and overview record.
+     * @throws StorageBackendException
+     */
+    default List<Pair<Long, String>> getOverview(Group group, long first,
+            long last) throws StorageBackendException {
+        List<Pair<Long, Article>> heads = getArticleHeads(group, first, last);
+        List<Pair<Long, String>> overview = new ArrayList<>(heads.size());
+        for (Pair<Long, Article> head : heads) {
+            overview.add(new Pair<>(head.getA(), Overview.format(head.getB())));
+        }
+        return overview;
+    }
+
+    /**
+     * Passes the overview records of the given range to the consumer, ordered
+     * by article number. Backends that can read the records incrementally
+     * should override this method, the default implementation collects them
+     * with getOverview() first.
+     *
+     * @param group
+     * @param first
+     * @param last
+     * @param consumer
+     * @throws StorageBackendException
+     * @throws IOException If thrown by the consumer.
+     */
+    default void forEachOverview(Group group, long first, long last,
+            RecordConsumer<String> consumer)
+            throws StorageBackendException, IOException {
+        for (Pair<Long, String> record : getOverview(group, first, last)) {
+            consumer.accept(record.getA(), record.getB());
+        }
+    }
+
+    /**
+     * Passes the values of the given header matching the pattern to the
+     * consumer, see getArticleHeaders().
+     *
+     * @param group
+     * @param start
+     * @param end
+     * @param header
+     * @param pattern
+     * @param consumer
+     * @throws StorageBackendException
+     * @throws IOException If thrown by the consumer.
+     */
+    default void forEachArticleHeader(Group group, long start, long end,
+            String header, String pattern, RecordConsumer<String> consumer)
+            throws StorageBackendException, IOException {
+        for (Pair<Long, String> value : getArticleHeaders(group, start, end,
+                header, pattern)) {
+            consumer.accept(value.getA(), value.getB());
+        }
+    }
+
+    /**
+     * Passes the value of the given header of the articles in the range to
+     * the consumer, ordered by article number; articles without the header
+     * are passed with an empty value (RFC 3977 section 8.5). The values of
+     * the overview fields are taken from the overview records, other headers
+     * are retrieved with forEachArticleHeader(); backends should override
+     * this method if they keep further headers in a way that can be read
+     * sequentially.
+     *
+     * @param group
+     * @param first
+     * @param last
+     * @param header   Header name or metadata item, e.g. ":lines".
+     * @param consumer
+     * @throws StorageBackendException
+     * @throws IOException If thrown by the consumer.
+     */
+    default void forEachHeader(Group group, long first, long last,
+            String header, RecordConsumer<String> consumer)
+            throws StorageBackendException, IOException {
+        final int field = Overview.fieldIndex(header);
+        if (field >= 0) {
+            forEachOverview(group, first, last, (number, record) -> consumer
+                    .accept(number, Overview.field(record, field)));
+        } else {
+            // forEachArticleHeader() skips the articles without the header,
+            // so the values are merged with the article numbers of the range;
+            // only the values of one window of the range are held at a time
+            final String key = header.toLowerCase(Locale.US);
+            final long window = 1000;
+            final Map<Long, String> values = new HashMap<>();
+            first = Math.max(first, getFirstArticleNumber(group));
+            last = Math.min(last, getLastArticleNumber(group));
+            for (long start = first; start <= last; start += window) {
+                final long end = Math.min(last, start + window - 1);
+                values.clear();
+                forEachArticleHeader(group, start, end, key, "*", values::put);
+                forEachOverview(group, start, end, (number, record) -> consumer
+                        .accept(number, values.getOrDefault(number, "")));
+            }
+        }
+    }
+
+    /**
+     * Passes the article numbers of the given group to the consumer in
+     * ascending order; the records are null.
+     *
+     * @param groupID
+     * @param consumer
+     * @throws StorageBackendException
+     * @throws IOException If thrown by the consumer.
+     */
+    default void forEachArticleNumber(long groupID,
+            RecordConsumer<Void> consumer)
+            throws StorageBackendException, IOException {
+        for (long number : getArticleNumbers(groupID)) {
+            consumer.accept(number, null);
+        }
+    }
+
     long getArticleIndex(Article art, Group group)
             throws StorageBackendException;
 
@@ -0,0 +1,201 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for a large number of timeouts with a coarse
+ * granularity. Scheduling, touching and cancelling a timeout is O(1) and
+ * thread-safe; the timeouts are only moved between the buckets of the wheel
+ * by the single thread that calls advance(). All timeouts that expired
+ * during one call of advance() are passed to the expiry handler as one
+ * batch.
+ *
+ * @author Christian Lins
+ * @param <T> Type of the items the timeouts are scheduled for.
+ * @since sonews/2.1
+ */
+public class TimingWheel<T> {
+
+    /**
+     * A scheduled timeout.
+     *
+     * @param <T>
+     */
+    public static final class Timeout<T> {
+
+        private final T item;
+        private volatile long deadline;
+        private volatile boolean cancelled = false;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * @return Time in milliseconds when this timeout expires.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Postpones this timeout, e.g. because of activity on a connection.
+         * The timeout is moved lazily when its old bucket is reached. Touching
+         * an already expired timeout has no effect.
+         *
+         * @param delayMillis New delay from now on.
+         */
+        public void touch(long delayMillis) {
+            this.deadline = System.currentTimeMillis() + delayMillis;
+        }
+
+        /**
+         * Cancels this timeout; it is removed lazily from the wheel.
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickMillis;
+    private final int mask;
+    private final ArrayDeque<Timeout<T>>[] buckets;
+    /** Newly scheduled timeouts, not yet put into a bucket */
+    private final Queue<Timeout<T>> incoming = new ConcurrentLinkedQueue<>();
+    private final Consumer<List<T>> expiryHandler;
+    /** Next tick to be processed */
+    private long currentTick;
+
+    /**
+     * @param tickMillis    Granularity of the wheel in milliseconds.
+     * @param wheelSize     Number of buckets, is rounded up to a power of two.
+     * @param expiryHandler Called with all items that expired during one
+     *                      call of advance().
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, int wheelSize,
+            Consumer<List<T>> expiryHandler) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMillis and wheelSize must be positive");
+        }
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.buckets = new ArrayDeque[size];
+        for (int n = 0; n < size; n++) {
+            buckets[n] = new ArrayDeque<>();
+        }
+        this.expiryHandler = expiryHandler;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Schedules a timeout for the given item. This method is thread-safe.
+     *
+     * @param item
+     * @param delayMillis
+     * @return The Timeout that can be touched or cancelled.
+     */
+    public Timeout<T> schedule(T item, long delayMillis) {
+        Timeout<T> timeout = new Timeout<>(item,
+                System.currentTimeMillis() + delayMillis);
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    private void place(Timeout<T> timeout) {
+        // Timeouts that are already due are put into the next bucket
+        long tick = Math.max(timeout.deadline / tickMillis, currentTick);
+        buckets[(int) (tick & mask)].add(timeout);
+    }
+
+    /**
+     * Processes all ticks up to the given time and passes the expired items
+     * to the expiry handler. Must be called by only one thread.
+     *
+     * @param now Current time in milliseconds.
+     */
+    public void advance(long now) {
+        Timeout<T> timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (!timeout.cancelled) {
+                place(timeout);
+            }
+        }
+
+        final long targetTick = now / tickMillis;
+        final List<T> expired = new ArrayList<>();
+
+        // Every bucket needs to be visited only once, even if the last call
+        // was a long time ago
+        long tick = Math.max(currentTick, targetTick - mask);
+        for (; tick <= targetTick; tick++) {
+            processBucket(buckets[(int) (tick & mask)], targetTick, expired);
+        }
+        currentTick = Math.max(currentTick, targetTick + 1);
+
+        if (!expired.isEmpty()) {
+            expiryHandler.accept(expired);
+        }
+    }
+
+    private void processBucket(ArrayDeque<Timeout<T>> bucket, long targetTick,
+            List<T> expired) {
+        for (int n = bucket.size(); n > 0; n--) {
+            Timeout<T> timeout = bucket.poll();
+            if (timeout.cancelled) {
+                continue;
+            }
+
+            long deadlineTick = timeout.deadline / tickMillis;
+            if (deadlineTick <= targetTick) {
+                expired.add(timeout.item);
+            } else {
+                // Belongs to a later round or was touched in the meantime,
+                // so move it to the bucket of its deadline
+                buckets[(int) (deadlineTick & mask)].add(timeout);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.util;
+
+/**
+ * Token bucket rate limiter. Tokens are added continuously at a fixed rate
+ * up to the capacity of the bucket; every permitted event takes one token.
+ * This allows short bursts while limiting the long-term rate. The methods
+ * are thread-safe.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public final class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param perSecond Number of tokens added per second.
+     * @param capacity  Maximum number of tokens, at least 1.
+     */
+    public TokenBucket(double perSecond, double capacity) {
+        this(perSecond, capacity, System.nanoTime());
+    }
+
+    TokenBucket(double perSecond, double capacity, long now) {
+        if (perSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive");
+        }
+        this.tokensPerNano = perSecond / NANOS_PER_SECOND;
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+        this.lastRefill = now;
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+
+    /**
+     * Takes one token if available.
+     *
+     * @return true if the event is permitted.
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    synchronized boolean tryAcquire(long now) {
+        refill(now);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a token taken by tryAcquire() that was not used.
+     */
+    public synchronized void release() {
+        tokens = Math.min(capacity, tokens + 1);
+    }
+
+    /**
+     * @return Milliseconds until the next token is available, 0 if a token
+     *         is available now.
+     */
+    public long millisUntilAvailable() {
+        return millisUntilAvailable(System.nanoTime());
+    }
+
+    synchronized long millisUntilAvailable(long now) {
+        refill(now);
+        if (tokens >= 1) {
+            return 0;
+        }
+        long nanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+        return Math.max(1, (nanos + 999999) / 1000000);
+    }
+}
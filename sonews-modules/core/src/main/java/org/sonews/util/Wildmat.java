@@ -0,0 +1,450 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compiled wildmat (RFC 3977 section 4) as used by LIST ACTIVE, LIST
+ * NEWSGROUPS and XPAT. A wildmat is a comma separated list of patterns, a
+ * pattern prefixed with '!' is negated; a value matches if the last pattern
+ * that matches it is not negated. Besides the wildcards '*' and '?' the
+ * patterns may contain character classes like "[a-z]" or "[^0-9]" and a
+ * backslash quotes the following character (as with INN).
+ *
+ * The wildmat is compiled into a minimized deterministic automaton, so a
+ * value is matched in a single pass over its characters regardless of the
+ * number of patterns and wildcards. Compiled wildmats are cached by their
+ * pattern string.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public final class Wildmat {
+
+    /** Maximum number of cached wildmats */
+    private static final int CACHE_SIZE = 256;
+
+    /** Maximum number of automaton states before minimization */
+    private static final int MAX_STATES = 4096;
+
+    private static final Map<String, Wildmat> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the compiled form of the given wildmat.
+     *
+     * @param wildmat
+     * @return
+     * @throws PatternSyntaxException If a character class is not terminated
+     *                                or the wildmat is too complex.
+     */
+    public static Wildmat compile(String wildmat) throws PatternSyntaxException {
+        Wildmat compiled = cache.get(wildmat);
+        if (compiled == null) {
+            compiled = new Wildmat(wildmat);
+            if (cache.size() >= CACHE_SIZE) {
+                cache.clear();
+            }
+            cache.put(wildmat, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Element of a pattern: a set of characters given as sorted, disjoint
+     * ranges of code points, or a star.
+     */
+    private static final class Element {
+
+        final boolean star;
+        final int[] ranges; // start0, end0, start1, end1... (inclusive)
+        final boolean negated;
+
+        Element(boolean star, int[] ranges, boolean negated) {
+            this.star = star;
+            this.ranges = ranges;
+            this.negated = negated;
+        }
+
+        boolean matches(int cp) {
+            if (star) {
+                return true;
+            }
+            boolean in = false;
+            for (int n = 0; n < ranges.length && !in; n += 2) {
+                in = cp >= ranges[n] && cp <= ranges[n + 1];
+            }
+            return in != negated;
+        }
+    }
+
+    /** Single pattern of the wildmat */
+    private static final class Pat {
+
+        final boolean negated;
+        final List<Element> elements = new ArrayList<>();
+        boolean literal = true; // No character classes or quoting
+
+        Pat(boolean negated) {
+            this.negated = negated;
+        }
+    }
+
+    private final String wildmat;
+    private final String sqlLike;
+
+    /** First code point of every symbol class, ascending */
+    private final int[] symbolStarts;
+    /** Symbol class of the ASCII characters */
+    private final int[] asciiSymbols = new int[128];
+    /** Transition table: next state = transitions[state * symbols + symbol] */
+    private final int[] transitions;
+    private final boolean[] accepting;
+    /** State that can never reach an accepting state, or -1 */
+    private final int deadState;
+
+    private Wildmat(String wildmat) throws PatternSyntaxException {
+        this.wildmat = wildmat;
+
+        List<Pat> pats = parse(wildmat);
+        this.sqlLike = toSQLLike(pats);
+
+        // Split the code points into classes that no element distinguishes
+        TreeSet<Integer> bounds = new TreeSet<>();
+        bounds.add(0);
+        for (Pat pat : pats) {
+            for (Element e : pat.elements) {
+                for (int n = 0; !e.star && n < e.ranges.length; n += 2) {
+                    bounds.add(e.ranges[n]);
+                    if (e.ranges[n + 1] < Character.MAX_CODE_POINT) {
+                        bounds.add(e.ranges[n + 1] + 1);
+                    }
+                }
+            }
+        }
+        this.symbolStarts = new int[bounds.size()];
+        int idx = 0;
+        for (int b : bounds) {
+            symbolStarts[idx++] = b;
+        }
+        for (int c = 0; c < asciiSymbols.length; c++) {
+            asciiSymbols[c] = findSymbol(c);
+        }
+
+        // Subset construction over the patterns' automata; NFA state
+        // offsets[p] + i means that i elements of pattern p were consumed
+        final int symbols = symbolStarts.length;
+        int[] offsets = new int[pats.size() + 1];
+        for (int p = 0; p < pats.size(); p++) {
+            offsets[p + 1] = offsets[p] + pats.get(p).elements.size() + 1;
+        }
+
+        Map<BitSet, Integer> states = new HashMap<>();
+        List<BitSet> subsets = new ArrayList<>();
+        List<int[]> table = new ArrayList<>();
+
+        BitSet start = new BitSet();
+        for (int p = 0; p < pats.size(); p++) {
+            addClosure(start, pats.get(p), offsets[p], 0);
+        }
+        states.put(start, 0);
+        subsets.add(start);
+
+        for (int s = 0; s < subsets.size(); s++) {
+            BitSet subset = subsets.get(s);
+            int[] row = new int[symbols];
+            for (int sym = 0; sym < symbols; sym++) {
+                BitSet next = new BitSet();
+                for (int p = 0; p < pats.size(); p++) {
+                    Pat pat = pats.get(p);
+                    for (int i = 0; i < pat.elements.size(); i++) {
+                        Element e = pat.elements.get(i);
+                        if (subset.get(offsets[p] + i)
+                                && e.matches(symbolStarts[sym])) {
+                            addClosure(next, pat, offsets[p], e.star ? i : i + 1);
+                        }
+                    }
+                }
+                Integer target = states.get(next);
+                if (target == null) {
+                    if (subsets.size() >= MAX_STATES) {
+                        throw new PatternSyntaxException("Wildmat too complex",
+                                wildmat, -1);
+                    }
+                    target = subsets.size();
+                    states.put(next, target);
+                    subsets.add(next);
+                }
+                row[sym] = target;
+            }
+            table.add(row);
+        }
+
+        // The last pattern that matches decides
+        boolean[] accept = new boolean[subsets.size()];
+        for (int s = 0; s < accept.length; s++) {
+            for (int p = pats.size() - 1; p >= 0; p--) {
+                int end = offsets[p] + pats.get(p).elements.size();
+                if (subsets.get(s).get(end)) {
+                    accept[s] = !pats.get(p).negated;
+                    break;
+                }
+            }
+        }
+
+        // Minimize by partition refinement (Moore); blocks are numbered in
+        // the order of their first state, so the initial state stays 0
+        int[] block = new int[accept.length];
+        int blocks = 0;
+        for (;;) {
+            Map<List<Integer>, Integer> signatures = new HashMap<>();
+            int[] refined = new int[block.length];
+            for (int s = 0; s < block.length; s++) {
+                List<Integer> signature = new ArrayList<>(symbols + 2);
+                signature.add(block[s]);
+                signature.add(accept[s] ? 1 : 0);
+                for (int target : table.get(s)) {
+                    signature.add(block[target]);
+                }
+                Integer b = signatures.get(signature);
+                if (b == null) {
+                    b = signatures.size();
+                    signatures.put(signature, b);
+                }
+                refined[s] = b;
+            }
+            block = refined;
+            if (signatures.size() == blocks) {
+                break;
+            }
+            blocks = signatures.size();
+        }
+
+        this.transitions = new int[blocks * symbols];
+        this.accepting = new boolean[blocks];
+        for (int s = 0; s < block.length; s++) {
+            accepting[block[s]] = accept[s];
+            System.arraycopy(table.get(s), 0, transitions, block[s] * symbols,
+                    symbols);
+        }
+        for (int n = 0; n < transitions.length; n++) {
+            transitions[n] = block[transitions[n]];
+        }
+
+        int dead = -1;
+        for (int s = 0; s < blocks && dead < 0; s++) {
+            boolean loops = !accepting[s];
+            for (int sym = 0; sym < symbols && loops; sym++) {
+                loops = transitions[s * symbols + sym] == s;
+            }
+            if (loops) {
+                dead = s;
+            }
+        }
+        this.deadState = dead;
+    }
+
+    /**
+     * Adds the NFA state after i elements of the pattern and, as a star may
+     * match nothing, the states following it.
+     */
+    private static void addClosure(BitSet set, Pat pat, int offset, int i) {
+        set.set(offset + i);
+        while (i < pat.elements.size() && pat.elements.get(i).star) {
+            set.set(offset + ++i);
+        }
+    }
+
+    private int findSymbol(int cp) {
+        int idx = Arrays.binarySearch(symbolStarts, cp);
+        return idx >= 0 ? idx : -idx - 2;
+    }
+
+    /**
+     * @param value
+     * @return true if the whole value matches this wildmat.
+     */
+    public boolean matches(CharSequence value) {
+        final int symbols = symbolStarts.length;
+        final int len = value.length();
+        int state = 0;
+        for (int n = 0; n < len && state != deadState; n++) {
+            int cp = value.charAt(n);
+            if (Character.isHighSurrogate((char) cp) && n + 1 < len
+                    && Character.isLowSurrogate(value.charAt(n + 1))) {
+                cp = Character.toCodePoint((char) cp, value.charAt(++n));
+            }
+            int sym = cp < asciiSymbols.length ? asciiSymbols[cp]
+                    : findSymbol(cp);
+            state = transitions[state * symbols + sym];
+        }
+        return accepting[state];
+    }
+
+    /**
+     * Returns a pattern for the SQL LIKE operator that matches at least all
+     * values matched by this wildmat; '!' is used as escape character, e.g.
+     * "... LIKE ? ESCAPE '!'". As some databases compare case insensitive,
+     * the values returned by the database must still be checked with
+     * matches().
+     *
+     * @return LIKE pattern or null if it cannot be expressed or would match
+     *         every value.
+     */
+    public String getSQLLike() {
+        return sqlLike;
+    }
+
+    @Override
+    public String toString() {
+        return wildmat;
+    }
+
+    private static List<Pat> parse(String wildmat) throws PatternSyntaxException {
+        List<Pat> pats = new ArrayList<>();
+        int n = 0;
+        do {
+            boolean negated = n < wildmat.length() && wildmat.charAt(n) == '!';
+            Pat pat = new Pat(negated);
+            if (negated) {
+                n++;
+            }
+            for (; n < wildmat.length() && wildmat.charAt(n) != ','; n++) {
+                int c = wildmat.codePointAt(n);
+                if (c == '*') {
+                    pat.elements.add(new Element(true, null, false));
+                } else if (c == '?') {
+                    pat.elements.add(new Element(false,
+                            new int[] { 0, Character.MAX_CODE_POINT }, false));
+                } else if (c == '[') {
+                    n = parseClass(pat, wildmat, n);
+                } else {
+                    if (c == '\\' && n + 1 < wildmat.length()) {
+                        pat.literal = false;
+                        c = wildmat.codePointAt(++n);
+                    }
+                    n += Character.charCount(c) - 1;
+                    pat.elements.add(new Element(false, new int[] { c, c }, false));
+                }
+            }
+            pats.add(pat);
+        } while (n++ < wildmat.length());
+        return pats;
+    }
+
+    /**
+     * Parses the character class starting at the given index.
+     *
+     * @return Index of the closing bracket.
+     */
+    private static int parseClass(Pat pat, String wildmat, int start)
+            throws PatternSyntaxException {
+        int n = start + 1;
+        boolean negated = false;
+        if (n < wildmat.length() && wildmat.charAt(n) == '^') {
+            negated = true;
+            n++;
+        }
+
+        List<int[]> ranges = new ArrayList<>();
+        // A leading ']' is part of the class
+        for (boolean first = true; n < wildmat.length(); first = false) {
+            int c = wildmat.codePointAt(n);
+            if (c == ']' && !first) {
+                pat.literal = false;
+                pat.elements.add(new Element(false, merge(ranges), negated));
+                return n;
+            }
+            if (c == '\\' && n + 1 < wildmat.length()) {
+                c = wildmat.codePointAt(++n);
+            }
+            n += Character.charCount(c);
+
+            int end = c;
+            if (n + 1 < wildmat.length() && wildmat.charAt(n) == '-'
+                    && wildmat.charAt(n + 1) != ']') {
+                end = wildmat.codePointAt(++n);
+                if (end == '\\' && n + 1 < wildmat.length()) {
+                    end = wildmat.codePointAt(++n);
+                }
+                n += Character.charCount(end);
+            }
+            ranges.add(new int[] { Math.min(c, end), Math.max(c, end) });
+        }
+        throw new PatternSyntaxException("Unterminated character class",
+                wildmat, start);
+    }
+
+    private static int[] merge(List<int[]> ranges) {
+        ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+        List<int[]> merged = new ArrayList<>();
+        for (int[] r : ranges) {
+            int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && r[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], r[1]);
+            } else {
+                merged.add(r.clone());
+            }
+        }
+        int[] flat = new int[merged.size() * 2];
+        for (int n = 0; n < merged.size(); n++) {
+            flat[2 * n] = merged.get(n)[0];
+            flat[2 * n + 1] = merged.get(n)[1];
+        }
+        return flat;
+    }
+
+    /**
+     * LIKE can only express a single pattern that is not negated and
+     * contains no character classes.
+     */
+    private static String toSQLLike(List<Pat> pats) {
+        if (pats.size() != 1 || pats.get(0).negated || !pats.get(0).literal) {
+            return null;
+        }
+
+        StringBuilder like = new StringBuilder();
+        boolean restricted = false;
+        for (Element e : pats.get(0).elements) {
+            if (e.star) {
+                like.append('%');
+                continue;
+            }
+            restricted = true;
+            if (e.ranges[0] != e.ranges[1]) {
+                like.append('_');
+                continue;
+            }
+            int c = e.ranges[0];
+            if (c == '%' || c == '_' || c == '!') {
+                like.append('!');
+            }
+            like.appendCodePoint(c);
+        }
+        return restricted ? like.toString() : null;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for class org.sonews.daemon.BufferPool.
+ *
+ * @author Christian Lins
+ * @see org.sonews.daemon.BufferPool
+ * @since sonews/2.1
+ */
+public class BufferPoolTest extends TestCase {
+
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        assertEquals(512, pool.acquire(1).capacity());
+        assertEquals(512, pool.acquire(512).capacity());
+        assertEquals(4096, pool.acquire(513).capacity());
+        assertEquals(65536, pool.acquire(65536).capacity());
+
+        ByteBuffer huge = pool.acquire(65537);
+        assertFalse(huge.isDirect());
+        assertEquals(65537, huge.capacity());
+        assertEquals(1, pool.getHeapAllocations());
+    }
+
+    public void testRecycle() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteBuffer buf = pool.acquire(512);
+        assertTrue(buf.isDirect());
+        assertEquals(1, pool.getMisses());
+        assertEquals(1, pool.getAllocations());
+
+        buf.put((byte) 1);
+        pool.release(buf);
+        ByteBuffer again = pool.acquire(100);
+        assertSame(buf, again);
+        assertEquals(0, again.position());
+        assertEquals(512, again.limit());
+        assertEquals(1, pool.getHits());
+
+        // Read-only views and foreign buffers must not enter the pool
+        pool.release(again.asReadOnlyBuffer());
+        pool.release(ByteBuffer.allocateDirect(1000));
+        assertNotSame(again, pool.acquire(512));
+        assertEquals(2, pool.getMisses());
+    }
+
+    public void testDirectMemoryLimit() {
+        BufferPool pool = new BufferPool(8192);
+        pool.preallocate(4096, 3);
+        assertEquals(8192, pool.getDirectMemory());
+        assertEquals(2, pool.getAllocations());
+
+        assertTrue(pool.acquire(4096).isDirect());
+        assertTrue(pool.acquire(4096).isDirect());
+        assertFalse(pool.acquire(4096).isDirect());
+        assertFalse(pool.acquire(512).isDirect());
+        assertEquals(8192, pool.getDirectMemory());
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the line framing of class org.sonews.daemon.ChannelLineBuffers.
+ *
+ * @author Christian Lins
+ * @see org.sonews.daemon.ChannelLineBuffers
+ * @since sonews/2.1
+ */
+public class ChannelLineBuffersTest extends TestCase {
+
+    private static String next(ChannelLineBuffers buffers)
+            throws IOException {
+        ByteBuffer line = buffers.nextInputLine();
+        if (line == null) {
+            return null;
+        }
+        assertTrue(line.isReadOnly());
+        byte[] raw = new byte[line.remaining()];
+        line.get(raw);
+        return new String(raw, StandardCharsets.US_ASCII);
+    }
+
+    private static void receive(ChannelLineBuffers buffers, String data) {
+        buffers.getInputBuffer().put(data.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public void testIndexOfLF() {
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (int pos = 0; pos < 40; pos++) {
+                ByteBuffer heap = ByteBuffer.allocate(40).order(order);
+                ByteBuffer direct = ByteBuffer.allocateDirect(40).order(order);
+                for (int n = 0; n < 40; n++) {
+                    // 0x0B next to 0x0A provokes false positives of naive SWAR
+                    byte b = n == pos ? (byte) '\n' : (byte) 0x0B;
+                    heap.put(n, b);
+                    direct.put(n, b);
+                }
+                assertEquals(pos, LineScanner.indexOfLF(heap, 0, 40));
+                assertEquals(pos, LineScanner.indexOfLF(direct, 0, 40));
+                assertEquals(-1, LineScanner.indexOfLF(heap, pos + 1, 40));
+                assertEquals(-1, LineScanner.indexOfLF(direct, 0, pos));
+            }
+        }
+    }
+
+    public void testNextInputLine() throws Exception {
+        ChannelLineBuffers buffers = new ChannelLineBuffers();
+        assertNull(buffers.nextInputLine());
+
+        receive(buffers, "GROUP local.test\r\nARTICLE 1\r\nHE");
+        assertEquals("GROUP local.test\r", next(buffers));
+        assertEquals("ARTICLE 1\r", next(buffers));
+        assertNull(next(buffers));
+
+        // The incomplete line must have been moved to the buffer start
+        assertEquals(2, buffers.getInputBuffer().position());
+        receive(buffers, "AD\r\n\n");
+        assertEquals("HEAD\r", next(buffers));
+        assertEquals("", next(buffers));
+        assertNull(next(buffers));
+        assertEquals(0, buffers.getInputBuffer().position());
+    }
+
+    public void testLazyInputBuffer() throws Exception {
+        ChannelLineBuffers buffers = new ChannelLineBuffers();
+        assertFalse(buffers.hasInputBuffer());
+
+        // A read that returned no data does not keep the buffer
+        assertNotNull(buffers.getReadBuffer());
+        buffers.releaseIdleInput();
+        assertFalse(buffers.hasInputBuffer());
+
+        receive(buffers, "GROUP local.test\r\nAR");
+        assertEquals("GROUP local.test\r", next(buffers));
+        assertNull(next(buffers));
+        buffers.releaseIdleInput();
+        assertTrue(buffers.hasInputBuffer()); // Incomplete line is pending
+
+        receive(buffers, "TICLE\r\n");
+        assertEquals("ARTICLE\r", next(buffers));
+        assertNull(next(buffers));
+        assertFalse(buffers.hasInputBuffer());
+
+        buffers.recycleBuffers();
+        assertNull(buffers.getReadBuffer());
+        assertNull(buffers.getInputBuffer());
+    }
+
+    public void testOverlongLine() throws Exception {
+        ChannelLineBuffers buffers = new ChannelLineBuffers();
+        StringBuilder longLine = new StringBuilder();
+        for (int n = 0; n < ChannelLineBuffers.BUFFER_SIZE; n++) {
+            longLine.append('x');
+        }
+        receive(buffers, longLine.toString());
+        assertNull(next(buffers));
+
+        // The line was moved to a larger buffer and is returned unchanged
+        assertTrue(buffers.getInputBuffer().capacity() > ChannelLineBuffers.BUFFER_SIZE);
+        receive(buffers, "yz\r\n");
+        assertEquals(longLine + "yz\r", next(buffers));
+        assertNull(next(buffers));
+
+        // Lines longer than the largest buffer are rejected
+        try {
+            for (int n = 0; n < 1000; n++) {
+                ByteBuffer buffer = buffers.getInputBuffer();
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 'x');
+                }
+                assertNull(next(buffers));
+            }
+            fail("Overlong line was accepted");
+        } catch (IOException expected) {
+            assertEquals(ChannelLineBuffers.MAX_INPUT_SIZE,
+                    buffers.getInputBuffer().capacity());
+        }
+    }
+
+    public void testAdaptiveInputBuffer() throws Exception {
+        ChannelLineBuffers buffers = new ChannelLineBuffers();
+        int size = ChannelLineBuffers.BUFFER_SIZE;
+        assertEquals(size, buffers.getInputBuffer().capacity());
+
+        // Full buffers of complete lines let the buffer grow...
+        while (size < ChannelLineBuffers.MAX_INPUT_SIZE) {
+            ByteBuffer buffer = buffers.getInputBuffer();
+            assertEquals(size, buffer.capacity());
+            while (buffer.hasRemaining()) {
+                receive(buffers, "body\r\n\r\n"); // Sizes are multiples of 8
+            }
+            while (next(buffers) != null) {
+                // Consume all lines
+            }
+            assertFalse(buffers.hasInputBuffer());
+            size = buffers.getInputBuffer().capacity();
+        }
+
+        // ...and single commands let it shrink back
+        for (int n = 0; n < 4; n++) {
+            receive(buffers, "QUIT\r\n");
+            assertEquals("QUIT\r", next(buffers));
+            assertNull(next(buffers));
+        }
+        assertEquals(ChannelLineBuffers.BUFFER_SIZE,
+                buffers.getInputBuffer().capacity());
+    }
+
+    public void testGatherOutput() throws Exception {
+        ChannelLineBuffers buffers = new ChannelLineBuffers();
+        assertEquals(0, buffers.getOutputBuffers().length);
+
+        ByteBuffer first = ByteBuffer.wrap(new byte[] {1, 2});
+        ByteBuffer second = ByteBuffer.wrap(new byte[] {3, 4});
+        buffers.addOutputBuffer(first);
+        buffers.addOutputBuffer(second);
+
+        ByteBuffer[] bufs = buffers.getOutputBuffers();
+        assertEquals(2, bufs.length);
+        assertSame(first, bufs[0]);
+
+        // Simulate a partial gathering write of three bytes
+        first.position(2);
+        second.position(1);
+        buffers.recycleWrittenBuffers();
+        bufs = buffers.getOutputBuffers();
+        assertEquals(1, bufs.length);
+        assertSame(second, bufs[0]);
+
+        second.position(2);
+        buffers.recycleWrittenBuffers();
+        assertTrue(buffers.isOutputBufferEmpty());
+    }
+
+    public void testWatermarks() throws Exception {
+        final ChannelLineBuffers buffers = new ChannelLineBuffers(1024, 512);
+        for (int n = 0; n < 4; n++) {
+            buffers.addOutputBuffer(ByteBuffer.allocate(300));
+        }
+        assertEquals(1200, buffers.getOutputBytes());
+        assertTrue(buffers.isOutputAboveWatermark());
+
+        final AtomicInteger resumed = new AtomicInteger();
+        assertTrue(buffers.resumeWhenDrained(resumed::incrementAndGet));
+
+        // Simulate the writer thread draining the buffers; the connection
+        // is resumed exactly once when the low water mark is reached
+        ByteBuffer[] bufs = buffers.getOutputBuffers();
+        bufs[0].position(bufs[0].limit());
+        buffers.recycleWrittenBuffers();
+        assertEquals(900, buffers.getOutputBytes());
+        assertEquals(0, resumed.get());
+        for (int n = 1; n < 3; n++) {
+            bufs[n].position(bufs[n].limit());
+        }
+        buffers.recycleWrittenBuffers();
+        assertEquals(300, buffers.getOutputBytes());
+        assertEquals(1, resumed.get());
+        bufs[3].position(bufs[3].limit());
+        assertNull(buffers.getOutputBuffer());
+        assertEquals(1, resumed.get());
+
+        // Below the water mark the connection is not suspended
+        assertFalse(buffers.isOutputAboveWatermark());
+        assertFalse(buffers.resumeWhenDrained(resumed::incrementAndGet));
+        assertEquals(1, resumed.get());
+    }
+
+    public void testWatermarksDirectBuffers() throws Exception {
+        final ChannelLineBuffers buffers = new ChannelLineBuffers(8192, 4096);
+
+        // Pooled output buffers are direct buffers and must be counted
+        for (int n = 0; n < 3; n++) {
+            ByteBuffer buf = BufferPool.getInstance().acquire(LineEncoder.BUFFER_SIZE);
+            assertTrue(buf.isDirect());
+            buf.position(LineEncoder.BUFFER_SIZE).flip();
+            buffers.addOutputBuffer(buf);
+        }
+        assertEquals(3 * LineEncoder.BUFFER_SIZE, buffers.getOutputBytes());
+        assertTrue(buffers.isOutputAboveWatermark());
+
+        // Mapped spool files are not counted
+        File file = File.createTempFile("sonews", ".spool");
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[100000]);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()).asReadOnlyBuffer();
+            buffers.addMappedOutputBuffer(mapped);
+        }
+        assertEquals(3 * LineEncoder.BUFFER_SIZE, buffers.getOutputBytes());
+        assertEquals(4, buffers.getOutputBufferCount());
+
+        // Writing the buffers releases exactly what was counted
+        for (ByteBuffer buf : buffers.getOutputBuffers()) {
+            buf.position(buf.limit());
+        }
+        buffers.recycleWrittenBuffers();
+        assertEquals(0, buffers.getOutputBytes());
+        assertTrue(buffers.isOutputBufferEmpty());
+        buffers.recycleBuffers();
+    }
+
+    public void testSuspendedOutputClosed() throws Exception {
+        ChannelLineBuffers buffers = new ChannelLineBuffers(100, 50);
+        buffers.addOutputBuffer(ByteBuffer.allocate(200));
+        final AtomicInteger resumed = new AtomicInteger();
+        assertTrue(buffers.resumeWhenDrained(resumed::incrementAndGet));
+
+        // A closed connection is never resumed
+        long total = ChannelLineBuffers.getTotalOutputBytes();
+        buffers.recycleBuffers();
+        assertEquals(total - 200, ChannelLineBuffers.getTotalOutputBytes());
+        assertEquals(0, resumed.get());
+        assertTrue(buffers.resumeWhenDrained(resumed::incrementAndGet));
+
+        try {
+            buffers.addOutputBuffer(ByteBuffer.allocate(1));
+            fail("ClosedChannelException expected");
+        } catch (ClosedChannelException ex) {
+            // Expected, no further output is accepted
+        }
+        assertEquals(0, resumed.get());
+    }
+
+    public void testCompression() throws Exception {
+        ChannelLineBuffers buffers = new ChannelLineBuffers();
+        buffers.startCompression();
+        assertTrue(buffers.isCompressed());
+        assertNotSame(buffers.getInputBuffer(), buffers.getReadBuffer());
+
+        // Output is compressed and queued on flush
+        StringBuilder text = new StringBuilder();
+        for (int n = 0; n < 1000; n++) {
+            text.append(n).append("\tSubject\tauthor@example.org\r\n");
+        }
+        byte[] plain = text.toString().getBytes(StandardCharsets.US_ASCII);
+        buffers.addOutputBuffer(ByteBuffer.wrap(plain));
+        assertTrue(buffers.flushOutput());
+        assertFalse(buffers.flushOutput());
+
+        int compressed = 0;
+        Inflater inflater = new Inflater(true);
+        byte[] result = new byte[plain.length];
+        int len = 0;
+        for (ByteBuffer buf : buffers.getOutputBuffers()) {
+            byte[] raw = new byte[buf.remaining()];
+            buf.get(raw);
+            compressed += raw.length;
+            inflater.setInput(raw);
+            len += inflater.inflate(result, len, result.length - len);
+        }
+        assertEquals(plain.length, len);
+        assertEquals(text.toString(), new String(result, StandardCharsets.US_ASCII));
+        assertTrue(compressed < plain.length / 5);
+
+        // Input is decompressed before the line framing
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput("GROUP local.test\r\nQUIT\r\n".getBytes(
+                StandardCharsets.US_ASCII));
+        byte[] raw = new byte[100];
+        int rawLen = deflater.deflate(raw, 0, raw.length, Deflater.SYNC_FLUSH);
+        buffers.getReadBuffer().put(raw, 0, rawLen);
+
+        assertNull(next(buffers));
+        assertTrue(buffers.decodeInput());
+        assertEquals("GROUP local.test\r", next(buffers));
+        assertEquals("QUIT\r", next(buffers));
+        assertNull(next(buffers));
+        buffers.recycleBuffers();
+    }
+
+    private static void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Exchanges data between the client engine and the buffers of the
+     * server until neither side has anything more to send.
+     */
+    private static void pump(SSLEngine client, ByteBuffer plain,
+            ChannelLineBuffers server, ByteBuffer received) throws Exception {
+        ByteBuffer toServer = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer toClient = ByteBuffer.allocate(1024 * 1024);
+        for (int round = 0; round < 20; round++) {
+            // Client to server
+            SSLEngineResult res;
+            do {
+                res = client.wrap(plain, toServer);
+                runTasks(client);
+            } while (res.bytesProduced() > 0);
+            toServer.flip();
+            server.getReadBuffer().put(toServer);
+            toServer.clear();
+            server.decodeInput();
+            server.flushOutput();
+
+            // Server to client; data the client engine does not consume
+            // before it wants to send is kept for the next round
+            for (ByteBuffer buf : server.getOutputBuffers()) {
+                assertTrue(buf.isDirect());
+                toClient.put(buf);
+            }
+            server.recycleWrittenBuffers();
+            toClient.flip();
+            while (toClient.hasRemaining()) {
+                res = client.unwrap(toClient, received);
+                runTasks(client);
+                if (res.getStatus() != SSLEngineResult.Status.OK
+                        || res.bytesConsumed() == 0) {
+                    break;
+                }
+            }
+            toClient.compact();
+        }
+    }
+
+    public void testTls() throws Exception {
+        SSLContext serverCtx = TlsLoopbackBenchmark.serverContext(
+                TlsLoopbackBenchmark.createKeyStore());
+        SSLEngine client = TlsLoopbackBenchmark.clientContext()
+                .createSSLEngine("localhost", 119);
+        client.setUseClientMode(true);
+
+        ChannelLineBuffers buffers = new ChannelLineBuffers();
+        buffers.startTls(serverCtx.createSSLEngine());
+        assertTrue(buffers.isTls());
+
+        // The greeting is held back until the handshake has finished
+        buffers.addOutputBuffer(ByteBuffer.wrap("200 hello\r\n".getBytes(
+                StandardCharsets.US_ASCII)));
+        assertFalse(buffers.flushOutput());
+        assertTrue(buffers.isOutputBufferEmpty());
+
+        ByteBuffer received = ByteBuffer.allocate(1024 * 1024);
+        pump(client, ByteBuffer.wrap("GROUP local.test\r\nQUIT\r\n".getBytes(
+                StandardCharsets.US_ASCII)), buffers, received);
+        received.flip();
+        assertEquals("200 hello\r\n",
+                StandardCharsets.US_ASCII.decode(received).toString());
+        assertEquals("GROUP local.test\r", next(buffers));
+        assertEquals("QUIT\r", next(buffers));
+        assertNull(next(buffers));
+
+        // A large response is encrypted in several records
+        received.clear();
+        byte[] text = new byte[100000];
+        for (int n = 0; n < text.length; n++) {
+            text[n] = (byte) ('a' + n % 26);
+        }
+        buffers.addOutputBuffer(ByteBuffer.wrap(text));
+        pump(client, ByteBuffer.allocate(0), buffers, received);
+        received.flip();
+        assertEquals(ByteBuffer.wrap(text), received);
+        buffers.recycleBuffers();
+    }
+
+    public void testStartTlsInjection() throws Exception {
+        SSLContext serverCtx = TlsLoopbackBenchmark.serverContext(
+                TlsLoopbackBenchmark.createKeyStore());
+        ChannelLineBuffers buffers = new ChannelLineBuffers();
+
+        // A command pipelined in plain text after STARTTLS with one write
+        receive(buffers, "STARTTLS\r\nXYZ\r\n");
+        assertEquals("STARTTLS\r", next(buffers));
+        try {
+            buffers.startTls(serverCtx.createSSLEngine());
+            fail("ProtocolException expected");
+        } catch (ProtocolException ex) {
+            // Expected, the plain text input is dropped
+        }
+        assertFalse(buffers.isTls());
+
+        // XYZ is never returned to the connection and nothing more is read
+        assertNull(next(buffers));
+        assertFalse(buffers.decodeInput());
+        assertNull(buffers.getReadBuffer());
+        assertNull(buffers.getInputBuffer());
+
+        // Without pipelined input TLS is started
+        buffers = new ChannelLineBuffers();
+        receive(buffers, "STARTTLS\r\n");
+        assertEquals("STARTTLS\r", next(buffers));
+        buffers.startTls(serverCtx.createSSLEngine());
+        assertTrue(buffers.isTls());
+        assertNull(next(buffers));
+        buffers.recycleBuffers();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for class org.sonews.daemon.LineEncoder.
+ *
+ * @author Christian Lins
+ * @see org.sonews.daemon.LineEncoder
+ * @since sonews/2.1
+ */
+public class LineEncoderTest extends TestCase {
+
+    private static String output(ChannelLineBuffers buffers) {
+        StringBuilder str = new StringBuilder();
+        for (ByteBuffer buf : buffers.getOutputBuffers()) {
+            byte[] raw = new byte[buf.remaining()];
+            buf.duplicate().get(raw);
+            str.append(new String(raw, StandardCharsets.UTF_8));
+        }
+        return str.toString();
+    }
+
+    public void testCorkedLines() throws Exception {
+        ChannelLineBuffers buffers = new ChannelLineBuffers();
+        LineEncoder encoder = new LineEncoder(buffers);
+
+        assertFalse(encoder.encode(CharBuffer.wrap("215 list follows\r\n"),
+                StandardCharsets.UTF_8));
+        assertFalse(encoder.encode(CharBuffer.wrap("local.test 1 1 y\r\n"),
+                StandardCharsets.UTF_8));
+        assertFalse(encoder.write(ByteBuffer.wrap(".\r\n".getBytes(
+                StandardCharsets.US_ASCII))));
+        assertTrue(buffers.isOutputBufferEmpty());
+
+        assertTrue(encoder.flush());
+        assertEquals(1, buffers.getOutputBufferCount());
+        assertEquals("215 list follows\r\nlocal.test 1 1 y\r\n.\r\n",
+                output(buffers));
+        assertFalse(encoder.flush());
+    }
+
+    public void testFullBuffers() throws Exception {
+        ChannelLineBuffers buffers = new ChannelLineBuffers();
+        LineEncoder encoder = new LineEncoder(buffers);
+
+        StringBuilder line = new StringBuilder();
+        for (int n = 0; n < LineEncoder.BUFFER_SIZE + 10; n++) {
+            line.append((char) ('a' + n % 26));
+        }
+        assertTrue(encoder.encode(CharBuffer.wrap(line), StandardCharsets.UTF_8));
+        assertEquals(1, buffers.getOutputBufferCount());
+        encoder.flush();
+        assertEquals(line.toString(), output(buffers));
+
+        // Large raw data is passed without copying
+        ByteBuffer raw = ByteBuffer.allocate(LineEncoder.BUFFER_SIZE * 2);
+        assertTrue(encoder.write(raw));
+        ByteBuffer[] bufs = buffers.getOutputBuffers();
+        assertSame(raw, bufs[bufs.length - 1]);
+    }
+
+    public void testUnmappableCharacters() throws Exception {
+        ChannelLineBuffers buffers = new ChannelLineBuffers();
+        LineEncoder encoder = new LineEncoder(buffers);
+
+        encoder.encode(CharBuffer.wrap("\u20ac!"), StandardCharsets.US_ASCII);
+        encoder.flush();
+        assertEquals("?!", output(buffers));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.daemon;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Loopback benchmark of the TLS throughput of ChannelLineBuffers. The server
+ * side uses the TLS layer of ChannelLineBuffers on a blocking SocketChannel,
+ * the client is a plain SSLSocket; the certificate is a self-signed one
+ * created with keytool. For comparison the same transfer is measured
+ * without TLS.
+ *
+ * @author Christian Lins
+ * @since sonews/2.1
+ */
+public final class TlsLoopbackBenchmark {
+
+    static final String PASSWORD = "sonews";
+
+    /**
+     * Creates a key store with a self-signed certificate for localhost.
+     *
+     * @return The PKCS12 key store file, deleted on exit.
+     * @throws Exception If keytool is not available.
+     */
+    static File createKeyStore() throws Exception {
+        File file = File.createTempFile("sonews", ".p12");
+        file.delete();
+        file.deleteOnExit();
+
+        String keytool = System.getProperty("java.home") + File.separator
+                + "bin" + File.separator + "keytool";
+        Process proc = new ProcessBuilder(keytool, "-genkeypair",
+                "-alias", "sonews", "-keyalg", "EC", "-keysize", "256",
+                "-dname", "CN=localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start();
+        while (proc.getInputStream().read() >= 0) {
+            // Discard the output
+        }
+        if (proc.waitFor() != 0 || !file.exists()) {
+            throw new IllegalStateException("keytool failed");
+        }
+        return file;
+    }
+
+    static SSLContext serverContext(File keyStore) throws Exception {
+        return TlsContext.create(KeyStore.getInstance("PKCS12"),
+                keyStore.getPath(), PASSWORD.toCharArray());
+    }
+
+    /**
+     * @return SSLContext of a client trusting every certificate.
+     */
+    static SSLContext clientContext() throws Exception {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String auth) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String auth) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new TrustManager[] { trustAll }, null);
+        return ctx;
+    }
+
+    private static void write(SocketChannel channel, ChannelLineBuffers buffers)
+            throws Exception {
+        buffers.flushOutput();
+        ByteBuffer[] bufs = buffers.getOutputBuffers();
+        while (bufs.length > 0) {
+            channel.write(bufs);
+            buffers.recycleWrittenBuffers();
+            bufs = buffers.getOutputBuffers();
+        }
+    }
+
+    /**
+     * Sends the given amount of data over a loopback connection.
+     *
+     * @return Throughput in MiB/s.
+     */
+    static double transfer(SSLContext server, SSLContext client, int mib)
+            throws Exception {
+        final long total = mib * 1024L * 1024L;
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.bind(new InetSocketAddress("127.0.0.1", 0));
+            final int port = ssc.socket().getLocalPort();
+
+            final long[] received = new long[1];
+            Thread reader = new Thread(() -> {
+                try (Socket sock = client != null
+                        ? client.getSocketFactory().createSocket("127.0.0.1", port)
+                        : new Socket("127.0.0.1", port)) {
+                    if (sock instanceof SSLSocket) {
+                        ((SSLSocket) sock).startHandshake();
+                    }
+                    InputStream in = sock.getInputStream();
+                    OutputStream out = sock.getOutputStream();
+                    out.write("GO\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    byte[] buf = new byte[65536];
+                    int len;
+                    while (received[0] < total && (len = in.read(buf)) >= 0) {
+                        received[0] += len;
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            });
+            reader.start();
+
+            try (SocketChannel channel = ssc.accept()) {
+                ChannelLineBuffers buffers = new ChannelLineBuffers();
+                if (server != null) {
+                    buffers.startTls(server.createSSLEngine());
+                }
+
+                // Handshake until the client has sent its first line
+                while (buffers.nextInputLine() == null) {
+                    if (channel.read(buffers.getReadBuffer()) < 0) {
+                        throw new IllegalStateException("Unexpected EOF");
+                    }
+                    buffers.decodeInput();
+                    write(channel, buffers);
+                }
+
+                final byte[] line = new byte[4096];
+                Arrays.fill(line, (byte) 'x');
+                final long start = System.nanoTime();
+                for (long sent = 0; sent < total; sent += line.length) {
+                    ByteBuffer buf = BufferPool.getInstance().acquire(line.length);
+                    buf.put(line);
+                    buf.flip();
+                    buffers.addOutputBuffer(buf);
+                    if (buffers.getOutputBufferCount() >= 64) {
+                        write(channel, buffers);
+                    }
+                }
+                write(channel, buffers);
+                reader.join();
+                double secs = (System.nanoTime() - start) / 1e9;
+                buffers.recycleBuffers();
+                return received[0] / 1048576.0 / secs;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int mib = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        SSLContext server = serverContext(createKeyStore());
+        SSLContext client = clientContext();
+
+        // Warm up
+        transfer(server, client, 16);
+        transfer(null, null, 16);
+
+        System.out.printf("Plain: %.1f MiB/s%n", transfer(null, null, mib));
+        System.out.printf("TLS:   %.1f MiB/s%n", transfer(server, client, mib));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for class org.sonews.storage.ArticleSpool.
+ *
+ * @author Christian Lins
+ * @see org.sonews.storage.ArticleSpool
+ * @since sonews/2.1
+ */
+public class ArticleSpoolTest extends TestCase {
+
+    private Path dir;
+    private ArticleSpool spool;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("spool");
+        spool = new ArticleSpool(dir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.walk(dir).sorted((a, b) -> b.compareTo(a))
+                .forEach(p -> p.toFile().delete());
+    }
+
+    private static String string(ByteBuffer buf) {
+        byte[] raw = new byte[buf.remaining()];
+        buf.duplicate().get(raw);
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    private static Article article(String messageID, byte[] body) {
+        return StorageManager.createArticle("Message-ID: " + messageID
+                + "\r\nSubject: Test", body);
+    }
+
+    public void testStoreAndGet() throws Exception {
+        Article article = article("<1@test>", "Line 1\r\nLine 2".getBytes(
+                StandardCharsets.UTF_8));
+        assertNull(spool.get("<1@test>", false));
+
+        spool.store(article);
+        ByteBuffer buf = spool.get("<1@test>", false);
+        assertTrue(buf.isReadOnly());
+        assertEquals(article.getHeaderSource() + "\r\n\r\nLine 1\r\nLine 2\r\n.\r\n",
+                string(buf));
+        assertEquals("Line 1\r\nLine 2\r\n.\r\n",
+                string(spool.get("<1@test>", true)));
+
+        spool.delete("<1@test>");
+        assertNull(spool.get("<1@test>", true));
+    }
+
+    public void testMappedBody() throws Exception {
+        byte[] body = new byte[ArticleSpool.MIN_MAPPED_SIZE * 2];
+        Arrays.fill(body, (byte) 'x');
+        spool.store(article("<2@test>", body));
+
+        ByteBuffer buf = spool.get("<2@test>", true);
+        assertTrue(buf instanceof MappedByteBuffer);
+        assertEquals(body.length + 5, buf.remaining());
+        assertEquals('x', buf.get(0));
+        assertEquals('.', buf.get(body.length + 2));
+    }
+}
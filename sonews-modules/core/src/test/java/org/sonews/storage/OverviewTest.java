@@ -0,0 +1,63 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.storage;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for class org.sonews.storage.Overview.
+ *
+ * @author Christian Lins
+ * @see org.sonews.storage.Overview
+ * @since sonews/2.1
+ */
+public class OverviewTest extends TestCase {
+
+    public void testFormat() {
+        Article article = StorageManager.createArticle(
+                "Subject: \tHello\tWorld \r\n"
+                + "From: Test <test@example.org>\r\n"
+                + "Date: Thu, 01 Jan 2015 00:00:00 +0000\r\n"
+                + "Message-ID: <1@test>\r\n"
+                + "References: <0@test>\r\n\t<00@test>\r\n"
+                + "Bytes: 42", null);
+        assertEquals("Hello World\tTest <test@example.org>\t"
+                + "Thu, 01 Jan 2015 00:00:00 +0000\t<1@test>\t"
+                + "<0@test>  <00@test>\t42\t0", Overview.format(article));
+    }
+
+    public void testEmptyFields() {
+        Article article = StorageManager.createArticle(
+                "Message-ID: <1@test>\r\nXref: host test:1", null);
+        assertEquals("\t\t\t<1@test>\t\t0\t0\thost test:1",
+                Overview.format(article));
+    }
+
+    public void testField() {
+        String record = "Hello\tTest\tdate\t<1@test>\t\t42\t3";
+        assertEquals(0, Overview.fieldIndex("SUBJECT"));
+        assertEquals(5, Overview.fieldIndex(":bytes"));
+        assertEquals(-1, Overview.fieldIndex("Newsgroups"));
+        assertEquals("Hello", Overview.field(record, 0));
+        assertEquals("<1@test>", Overview.field(record, Overview.fieldIndex("Message-ID")));
+        assertEquals("", Overview.field(record, 4));
+        assertEquals("3", Overview.field(record, Overview.fieldIndex(":lines")));
+        assertEquals("", Overview.field(record, 7));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.sonews.util.Pair;
+
+/**
+ * Unit test for the default methods of interface org.sonews.storage.Storage.
+ *
+ * @author Christian Lins
+ * @see org.sonews.storage.Storage
+ * @since sonews/2.1
+ */
+public class StorageTest extends TestCase {
+
+    /**
+     * Storage keeping the articles of one group in memory. Like the JDBC
+     * backend getArticleHeaders() skips the articles without the header.
+     */
+    private static class MemoryStorage implements Storage {
+
+        private final List<Pair<Long, Article>> articles = new ArrayList<>();
+
+        void add(long number, String headers) {
+            articles.add(new Pair<>(number,
+                    StorageManager.createArticle(headers, null)));
+        }
+
+        @Override
+        public List<Pair<Long, Article>> getArticleHeads(Group group,
+                long first, long last) {
+            List<Pair<Long, Article>> heads = new ArrayList<>();
+            for (Pair<Long, Article> article : articles) {
+                if (article.getA() >= first && article.getA() <= last) {
+                    heads.add(article);
+                }
+            }
+            return heads;
+        }
+
+        @Override
+        public List<Pair<Long, String>> getArticleHeaders(Group group,
+                long start, long end, String header, String pattern) {
+            List<Pair<Long, String>> values = new ArrayList<>();
+            for (Pair<Long, Article> head : getArticleHeads(group, start, end)) {
+                String[] value = head.getB().getHeader(header, true);
+                if (value != null) {
+                    values.add(new Pair<>(head.getA(), value[0]));
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public void addArticle(Article art) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int countArticles() {
+            return articles.size();
+        }
+
+        @Override
+        public void delete(String messageID) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Article getArticle(String messageID) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Article getArticle(long articleIndex, long groupID) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getArticleIndex(Article art, Group group) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Long> getArticleNumbers(long groupID) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getFirstArticleNumber(Group group) {
+            return articles.isEmpty() ? 0 : articles.get(0).getA().intValue();
+        }
+
+        @Override
+        public int getLastArticleNumber(Group group) {
+            return articles.isEmpty() ? 0
+                    : articles.get(articles.size() - 1).getA().intValue();
+        }
+
+        @Override
+        public String getOldestArticle() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getPostingsCount(String groupname) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isArticleExisting(String messageID) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void purgeGroup(Group group) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean update(Article article) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean authenticateUser(String username, char[] password) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public void testForEachHeaderMissing() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        storage.add(1, "Message-ID: <1@test>\r\nX-Test: one");
+        storage.add(2, "Message-ID: <2@test>");
+        storage.add(3, "Message-ID: <3@test>\r\nX-Test: three");
+        storage.add(4, "Message-ID: <4@test>\r\nX-Test: four");
+
+        // One line per article in the range, articles without the header
+        // have an empty value
+        final List<String> lines = new ArrayList<>();
+        storage.forEachHeader(new Group("test", 1, 0), 1, 3, "X-Test",
+                (number, value) -> lines.add(number + " " + value));
+        assertEquals(3, lines.size());
+        assertEquals("1 one", lines.get(0));
+        assertEquals("2 ", lines.get(1));
+        assertEquals("3 three", lines.get(2));
+    }
+
+    public void testForEachHeaderLargeRange() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        for (long n = 10000; n < 13000; n++) {
+            storage.add(n, n % 2 == 0
+                    ? "Message-ID: <" + n + "@test>\r\nX-Test: " + n
+                    : "Message-ID: <" + n + "@test>");
+        }
+
+        // The range is read in windows, every article is passed once and
+        // in order
+        final List<String> lines = new ArrayList<>();
+        storage.forEachHeader(new Group("test", 1, 0), 1, Long.MAX_VALUE,
+                "X-Test", (number, value) -> lines.add(number + " " + value));
+        assertEquals(3000, lines.size());
+        assertEquals("10000 10000", lines.get(0));
+        assertEquals("10001 ", lines.get(1));
+        assertEquals("12998 12998", lines.get(2998));
+        assertEquals("12999 ", lines.get(2999));
+    }
+
+    public void testForEachHeaderOverview() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        storage.add(1, "Message-ID: <1@test>\r\nReferences: <0@test>");
+        storage.add(2, "Message-ID: <2@test>");
+
+        final List<String> lines = new ArrayList<>();
+        storage.forEachHeader(new Group("test", 1, 0), 1, 2, "References",
+                (number, value) -> lines.add(number + " " + value));
+        assertEquals(2, lines.size());
+        assertEquals("1 <0@test>", lines.get(0));
+        assertEquals("2 ", lines.get(1));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for class org.sonews.util.TimingWheel.
+ *
+ * @author Christian Lins
+ * @see org.sonews.util.TimingWheel
+ * @since sonews/2.1
+ */
+public class TimingWheelTest extends TestCase {
+
+    private final List<List<String>> batches = new ArrayList<>();
+
+    private TimingWheel<String> newWheel() {
+        batches.clear();
+        return new TimingWheel<>(100, 8, batches::add);
+    }
+
+    public void testExpiry() {
+        TimingWheel<String> wheel = newWheel();
+        long now = System.currentTimeMillis();
+        wheel.schedule("a", 1000);
+        wheel.schedule("b", 1000);
+        wheel.schedule("c", 5000); // Several rounds of the wheel
+
+        wheel.advance(now + 500);
+        assertTrue(batches.isEmpty());
+
+        wheel.advance(now + 1200);
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertTrue(batches.get(0).contains("a"));
+        assertTrue(batches.get(0).contains("b"));
+
+        wheel.advance(now + 4000);
+        assertEquals(1, batches.size());
+        wheel.advance(now + 5200);
+        assertEquals(2, batches.size());
+        assertEquals("c", batches.get(1).get(0));
+    }
+
+    public void testTouchAndCancel() {
+        TimingWheel<String> wheel = newWheel();
+        long now = System.currentTimeMillis();
+        TimingWheel.Timeout<String> a = wheel.schedule("a", 500);
+        TimingWheel.Timeout<String> b = wheel.schedule("b", 500);
+        wheel.advance(now + 100);
+
+        a.touch(2000);
+        b.cancel();
+        wheel.advance(now + 700);
+        assertTrue(batches.isEmpty());
+
+        wheel.advance(now + 2200);
+        assertEquals(1, batches.size());
+        assertEquals("a", batches.get(0).get(0));
+    }
+
+    public void testLongPause() {
+        TimingWheel<String> wheel = newWheel();
+        long now = System.currentTimeMillis();
+        wheel.schedule("a", 300);
+        wheel.schedule("b", 100000);
+
+        // Far more ticks than buckets have passed since the last call
+        wheel.advance(now + 50000);
+        assertEquals(1, batches.size());
+        assertEquals("a", batches.get(0).get(0));
+
+        wheel.advance(now + 100200);
+        assertEquals(2, batches.size());
+        assertEquals("b", batches.get(1).get(0));
+    }
+}
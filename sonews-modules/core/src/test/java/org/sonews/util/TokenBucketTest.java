@@ -0,0 +1,67 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for class org.sonews.util.TokenBucket.
+ *
+ * @author Christian Lins
+ * @see org.sonews.util.TokenBucket
+ * @since sonews/2.1
+ */
+public class TokenBucketTest extends TestCase {
+
+    private static final long MS = 1000000L;
+
+    public void testBurstAndRate() {
+        TokenBucket bucket = new TokenBucket(10, 3, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+        assertEquals(100, bucket.millisUntilAvailable(0));
+
+        // One token every 100 ms
+        assertFalse(bucket.tryAcquire(50 * MS));
+        assertEquals(50, bucket.millisUntilAvailable(50 * MS));
+        assertTrue(bucket.tryAcquire(100 * MS));
+        assertFalse(bucket.tryAcquire(100 * MS));
+
+        // The bucket does not fill above its capacity
+        assertEquals(0, bucket.millisUntilAvailable(10000 * MS));
+        for (int n = 0; n < 3; n++) {
+            assertTrue(bucket.tryAcquire(10000 * MS));
+        }
+        assertFalse(bucket.tryAcquire(10000 * MS));
+    }
+
+    public void testRelease() {
+        TokenBucket bucket = new TokenBucket(1, 1, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+        bucket.release();
+        assertTrue(bucket.tryAcquire(0));
+        bucket.release();
+        bucket.release();
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *   SONEWS News Server
+ *   Copyright (C) 2009-2015  Christian Lins <christian@lins.me>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sonews.util;
+
+import java.util.regex.PatternSyntaxException;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for class org.sonews.util.Wildmat.
+ *
+ * @author Christian Lins
+ * @see org.sonews.util.Wildmat
+ * @since sonews/2.1
+ */
+public class WildmatTest extends TestCase {
+
+    public void testMatches() {
+        Wildmat wildmat = Wildmat.compile("Re: *sonews?");
+        assertTrue(wildmat.matches("Re: sonews!"));
+        assertTrue(wildmat.matches("Re: about\r\n sonews2"));
+        assertFalse(wildmat.matches("re: sonews!"));
+        assertFalse(wildmat.matches("Re: sonews"));
+
+        assertTrue(Wildmat.compile("a.b(c)+").matches("a.b(c)+"));
+        assertFalse(Wildmat.compile("a.b").matches("axb"));
+        assertTrue(Wildmat.compile("\\*").matches("*"));
+        assertFalse(Wildmat.compile("\\*").matches("x"));
+    }
+
+    public void testCharacterClasses() {
+        Wildmat wildmat = Wildmat.compile("[a-c]x[^0-9]");
+        assertTrue(wildmat.matches("bxy"));
+        assertFalse(wildmat.matches("dxy"));
+        assertFalse(wildmat.matches("bx5"));
+        assertTrue(Wildmat.compile("[]-]").matches("]"));
+        assertTrue(Wildmat.compile("[]-]").matches("-"));
+
+        try {
+            Wildmat.compile("[abc");
+            fail("PatternSyntaxException expected");
+        } catch (PatternSyntaxException ex) {
+            // Expected
+        }
+    }
+
+    public void testLists() {
+        Wildmat wildmat = Wildmat.compile("comp.*,!comp.lang.*,comp.lang.java");
+        assertTrue(wildmat.matches("comp.os.linux"));
+        assertFalse(wildmat.matches("comp.lang.c"));
+        assertTrue(wildmat.matches("comp.lang.java"));
+        assertFalse(wildmat.matches("alt.test"));
+
+        // Only negated patterns never match
+        assertFalse(Wildmat.compile("!alt.*").matches("comp.test"));
+        assertFalse(Wildmat.compile("!alt.*").matches("alt.test"));
+        assertTrue(Wildmat.compile("*,!*.test").matches("alt.tests"));
+        assertFalse(Wildmat.compile("*,!*.test").matches("alt.test"));
+        assertTrue(Wildmat.compile("a\\,b").matches("a,b"));
+        assertTrue(Wildmat.compile("a,").matches(""));
+        assertTrue(Wildmat.compile("").matches(""));
+        assertFalse(Wildmat.compile("").matches("a"));
+    }
+
+    public void testAutomaton() {
+        // Needs backtracking with a naive matcher
+        Wildmat wildmat = Wildmat.compile("*a*a*a*a*a*b");
+        StringBuilder value = new StringBuilder();
+        for (int n = 0; n < 10000; n++) {
+            value.append('a');
+        }
+        assertFalse(wildmat.matches(value));
+        assertTrue(wildmat.matches(value.append('b')));
+
+        assertTrue(Wildmat.compile("?x").matches("\uD83D\uDE00x"));
+        assertTrue(Wildmat.compile("[\u00E0-\u00FF]*").matches("\u00E9t\u00E9"));
+        assertFalse(Wildmat.compile("[^\u00E0-\u00FF]*").matches("\u00E9t\u00E9"));
+    }
+
+    public void testSQLLike() {
+        assertEquals("%sonews!_2!%_", Wildmat.compile("*sonews_2%?").getSQLLike());
+        assertEquals("a!!", Wildmat.compile("a!").getSQLLike());
+        assertNull(Wildmat.compile("*").getSQLLike());
+        assertNull(Wildmat.compile("[ab]*").getSQLLike());
+        assertNull(Wildmat.compile("a*,b*").getSQLLike());
+        assertNull(Wildmat.compile("!a*").getSQLLike());
+        assertSame(Wildmat.compile("*"), Wildmat.compile("*"));
+    }
+}
@@ -18,6 +18,8 @@
 
 package org.sonews.storage.impl.jdbc;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
@@ -26,9 +28,8 @@ import java.sql.PreparedStatement;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Locale;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import javax.mail.Header;
@@ -37,11 +38,16 @@ import javax.mail.internet.MimeUtility;
 import org.sonews.config.Config;
 import org.sonews.util.Log;
 import org.sonews.storage.Article;
+import org.sonews.storage.ArticleBuffer;
+import org.sonews.storage.ArticleSpool;
 import org.sonews.storage.Group;
+import org.sonews.storage.Overview;
+import org.sonews.storage.RecordConsumer;
 import org.sonews.storage.Storage;
 import org.sonews.storage.StorageBackendException;
 import org.sonews.storage.StorageManager;
 import org.sonews.util.Pair;
+import org.sonews.util.Wildmat;
 
 /**
  * Storage backend facade class for a relational SQL database using JDBC.
@@ -52,35 +58,66 @@ import org.sonews.util.Pair;
  */
 public class JDBCDatabase implements Storage {
     public static final int MAX_RESTARTS = 2;
+    /**
+     * Maximum number of missing overview records or indexed header values
+     * that are added after one range query; the others are built again on
+     * the next request.
+     */
+    public static final int MAX_BACKFILL = 1000;
 
     protected Connection conn = null;
     protected PreparedStatement pstmtAddArticle1 = null;
     protected PreparedStatement pstmtAddArticle2 = null;
     protected PreparedStatement pstmtAddArticle3 = null;
     protected PreparedStatement pstmtAddArticle4 = null;
+    protected PreparedStatement pstmtAddArticle5 = null;
+    protected PreparedStatement pstmtAddArticle6 = null;
     protected PreparedStatement pstmtCountArticles = null;
     protected PreparedStatement pstmtDeleteArticle0 = null;
     protected PreparedStatement pstmtDeleteArticle1 = null;
     protected PreparedStatement pstmtDeleteArticle2 = null;
     protected PreparedStatement pstmtDeleteArticle3 = null;
+    protected PreparedStatement pstmtDeleteArticle4 = null;
+    protected PreparedStatement pstmtDeleteArticle5 = null;
     protected PreparedStatement pstmtGetArticle0 = null;
     protected PreparedStatement pstmtGetArticle1 = null;
     protected PreparedStatement pstmtGetArticleHeaders0 = null;
     protected PreparedStatement pstmtGetArticleHeaders1 = null;
+    protected PreparedStatement pstmtGetArticleHeaders2 = null;
+    protected PreparedStatement pstmtGetArticleHeaders3 = null;
     protected PreparedStatement pstmtGetArticleHeads = null;
     protected PreparedStatement pstmtGetArticleIDs = null;
     protected PreparedStatement pstmtGetArticleIndex = null;
     protected PreparedStatement pstmtGetFirstArticleNumber = null;
+    protected PreparedStatement pstmtGetIndexedHeaders = null;
     protected PreparedStatement pstmtGetLastArticleNumber = null;
     protected PreparedStatement pstmtGetMaxArticleID = null;
     protected PreparedStatement pstmtGetMaxArticleIndex = null;
     protected PreparedStatement pstmtGetOldestArticle = null;
+    protected PreparedStatement pstmtGetOverview = null;
     protected PreparedStatement pstmtGetPostingsCount = null;
     protected PreparedStatement pstmtIsArticleExisting = null;
     protected PreparedStatement pstmtPurgeGroup0 = null;
     protected PreparedStatement pstmtPurgeGroup1 = null;
     /** How many times the database connection was reinitialized */
     protected int restarts = 0;
+    /** Number of rows fetched at once by the streaming range queries */
+    protected final int fetchSize = Config.inst().get(
+            Config.STORAGE_FETCHSIZE, 256);
+    /** Headers kept in the indexed_headers table, lower case */
+    protected final List<String> indexedHeaders = getIndexedHeaderKeys();
+
+    private static List<String> getIndexedHeaderKeys() {
+        List<String> keys = new ArrayList<>();
+        for (String key : Config.inst().get(Config.STORAGE_INDEXEDHEADERS,
+                "Newsgroups").split(",")) {
+            key = key.trim().toLowerCase(Locale.US);
+            if (!key.isEmpty() && Overview.fieldIndex(key) < 0) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
 
     protected void prepareGetPostingsCountStatement() throws SQLException {
         this.pstmtGetPostingsCount = conn
@@ -124,6 +161,12 @@ public class JDBCDatabase implements Storage {
                             + "VALUES (?, ?, ?)");
             this.pstmtAddArticle4 = conn
                     .prepareStatement("INSERT INTO article_ids (article_id, message_id) VALUES (?, ?)");
+            this.pstmtAddArticle5 = conn
+                    .prepareStatement("INSERT INTO overview (group_id, article_index, article_id, overview) "
+                            + "VALUES (?, ?, ?, ?)");
+            this.pstmtAddArticle6 = conn
+                    .prepareStatement("INSERT INTO indexed_headers (header_key, group_id, article_index, "
+                            + "article_id, header_value) VALUES (?, ?, ?, ?, ?)");
 
             // Prepare statement for method countArticles()
             this.pstmtCountArticles = conn
@@ -141,6 +184,12 @@ public class JDBCDatabase implements Storage {
                             + "(SELECT article_id FROM article_ids WHERE message_id = ?)");
             this.pstmtDeleteArticle3 = conn
                     .prepareStatement("DELETE FROM article_ids WHERE message_id = ?");
+            this.pstmtDeleteArticle4 = conn
+                    .prepareStatement("DELETE FROM overview WHERE article_id = "
+                            + "(SELECT article_id FROM article_ids WHERE message_id = ?)");
+            this.pstmtDeleteArticle5 = conn
+                    .prepareStatement("DELETE FROM indexed_headers WHERE article_id = "
+                            + "(SELECT article_id FROM article_ids WHERE message_id = ?)");
 
             // Prepare statements for methods getArticle()
             this.pstmtGetArticle0 = conn
@@ -156,19 +205,37 @@ public class JDBCDatabase implements Storage {
                     .prepareStatement("SELECT header_key, header_value FROM headers WHERE article_id = ? "
                             + "ORDER BY header_index ASC");
 
-            // Prepare statement for method getArticleHeaders(regular expr
-            // pattern)
+            // Prepare statements for method forEachArticleHeader(); the
+            // second one is used if the wildmat can be expressed with LIKE
             this.pstmtGetArticleHeaders1 = conn
                     .prepareStatement("SELECT p.article_index, h.header_value FROM headers h "
                             + "INNER JOIN postings p ON h.article_id = p.article_id "
-                            + "INNER JOIN groups g ON p.group_id = g.group_id "
-                            + "WHERE g.name          =  ? AND "
+                            + "WHERE p.group_id      =  ? AND "
                             + "h.header_key    =  ? AND "
-                            + "p.article_index >= ? "
+                            + "p.article_index >= ? AND "
+                            + "p.article_index <= ? "
                             + "ORDER BY p.article_index ASC");
+            this.pstmtGetArticleHeaders1.setFetchSize(fetchSize);
+            this.pstmtGetArticleHeaders3 = conn
+                    .prepareStatement("SELECT p.article_index, h.header_value FROM headers h "
+                            + "INNER JOIN postings p ON h.article_id = p.article_id "
+                            + "WHERE p.group_id      =  ? AND "
+                            + "h.header_key    =  ? AND "
+                            + "p.article_index >= ? AND "
+                            + "p.article_index <= ? AND "
+                            + "h.header_value LIKE ? ESCAPE '!' "
+                            + "ORDER BY p.article_index ASC");
+            this.pstmtGetArticleHeaders3.setFetchSize(fetchSize);
+
+            // Prepare statement for method addIndexedHeader()
+            this.pstmtGetArticleHeaders2 = conn
+                    .prepareStatement("SELECT header_value FROM headers WHERE article_id = ? "
+                            + "AND header_key = ? ORDER BY header_index ASC");
 
             this.pstmtGetArticleIDs = conn
-                    .prepareStatement("SELECT article_index FROM postings WHERE group_id = ?");
+                    .prepareStatement("SELECT article_index FROM postings WHERE group_id = ? "
+                            + "ORDER BY article_index ASC");
+            this.pstmtGetArticleIDs.setFetchSize(fetchSize);
 
             // Prepare statement for method getArticleIndex
             this.pstmtGetArticleIndex = conn
@@ -199,6 +266,27 @@ public class JDBCDatabase implements Storage {
                     .prepareStatement("SELECT message_id FROM article_ids WHERE article_id = "
                             + "(SELECT Min(article_id) FROM article_ids)");
 
+            // Prepare statement for method getOverview(); postings without
+            // overview record were stored before the overview table existed
+            this.pstmtGetOverview = conn
+                    .prepareStatement("SELECT p.article_index, p.article_id, o.overview FROM postings p "
+                            + "LEFT OUTER JOIN overview o ON o.group_id = p.group_id "
+                            + "AND o.article_index = p.article_index "
+                            + "WHERE p.group_id = ? AND p.article_index >= ? AND "
+                            + "p.article_index <= ? ORDER BY p.article_index ASC");
+            this.pstmtGetOverview.setFetchSize(fetchSize);
+
+            // Prepare statement for method forEachHeader(); postings without
+            // row were stored before the header was indexed
+            this.pstmtGetIndexedHeaders = conn
+                    .prepareStatement("SELECT p.article_index, p.article_id, i.header_value, i.article_id "
+                            + "FROM postings p LEFT OUTER JOIN indexed_headers i "
+                            + "ON i.header_key = ? AND i.group_id = p.group_id "
+                            + "AND i.article_index = p.article_index "
+                            + "WHERE p.group_id = ? AND p.article_index >= ? AND "
+                            + "p.article_index <= ? ORDER BY p.article_index ASC");
+            this.pstmtGetIndexedHeaders.setFetchSize(fetchSize);
+
             // Prepare statement for method getFirstArticleNumber()
             this.pstmtGetFirstArticleNumber = conn
                     .prepareStatement("SELECT Min(article_index) FROM postings WHERE group_id = ?");
@@ -220,6 +308,31 @@ public class JDBCDatabase implements Storage {
         }
     }
     
+    /**
+     * Starts the transaction of a streaming range query. Some drivers, e.g.
+     * the one of PostgreSQL, fetch the rows in chunks of fetchSize rows only
+     * if auto commit is disabled.
+     *
+     * @throws SQLException
+     */
+    protected void beginStreaming() throws SQLException {
+        this.conn.setAutoCommit(false);
+    }
+
+    /**
+     * Ends the transaction started by beginStreaming().
+     */
+    protected void endStreaming() {
+        try {
+            if (this.conn != null && !this.conn.getAutoCommit()) {
+                this.conn.commit();
+                this.conn.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            Log.get().log(Level.WARNING, "endStreaming() failed: {0}", ex);
+        }
+    }
+
     protected void closeResultSet(ResultSet rs) {
         if (rs != null) {
             try {
@@ -249,6 +362,8 @@ public class JDBCDatabase implements Storage {
             this.conn.setAutoCommit(true);
 
             this.restarts = 0; // Reset error count
+
+            spool(article);
         } catch (SQLException ex) {
             try {
                 this.conn.rollback(); // Rollback changes
@@ -295,14 +410,36 @@ public class JDBCDatabase implements Storage {
             pstmtAddArticle2.execute();
         }
 
-        // For each newsgroup add a reference
+        // For each newsgroup add a reference, the overview record and the
+        // indexed headers
+        String overview = Overview.format(article);
+        String[] indexedValues = new String[indexedHeaders.size()];
+        for (int n = 0; n < indexedValues.length; n++) {
+            indexedValues[n] = article.getHeader(indexedHeaders.get(n))[0]
+                    .replaceAll("[\r\n]", "");
+        }
         List<Group> groups = article.getGroups();
         for (Group group : groups) {
+            long articleIndex = getMaxArticleIndex(group.getInternalID()) + 1;
             pstmtAddArticle3.setLong(1, group.getInternalID());
             pstmtAddArticle3.setInt(2, newArticleID);
-            pstmtAddArticle3.setLong(3,
-                    getMaxArticleIndex(group.getInternalID()) + 1);
+            pstmtAddArticle3.setLong(3, articleIndex);
             pstmtAddArticle3.execute();
+
+            pstmtAddArticle5.setLong(1, group.getInternalID());
+            pstmtAddArticle5.setLong(2, articleIndex);
+            pstmtAddArticle5.setInt(3, newArticleID);
+            pstmtAddArticle5.setString(4, overview);
+            pstmtAddArticle5.execute();
+
+            for (int n = 0; n < indexedValues.length; n++) {
+                pstmtAddArticle6.setString(1, indexedHeaders.get(n));
+                pstmtAddArticle6.setLong(2, group.getInternalID());
+                pstmtAddArticle6.setLong(3, articleIndex);
+                pstmtAddArticle6.setInt(4, newArticleID);
+                pstmtAddArticle6.setString(5, indexedValues[n]);
+                pstmtAddArticle6.execute();
+            }
         }
 
         // Write message-id to article_ids table
@@ -350,11 +487,22 @@ public class JDBCDatabase implements Storage {
             this.pstmtDeleteArticle2.setString(1, messageID);
             this.pstmtDeleteArticle2.executeUpdate();
 
+            this.pstmtDeleteArticle4.setString(1, messageID);
+            this.pstmtDeleteArticle4.executeUpdate();
+
+            this.pstmtDeleteArticle5.setString(1, messageID);
+            this.pstmtDeleteArticle5.executeUpdate();
+
             this.pstmtDeleteArticle3.setString(1, messageID);
             this.pstmtDeleteArticle3.executeUpdate();
 
             this.conn.commit();
             this.conn.setAutoCommit(true);
+
+            ArticleSpool spool = ArticleSpool.getInstance();
+            if (spool != null) {
+                spool.delete(messageID);
+            }
         } catch (SQLException ex) {
             throw new StorageBackendException(ex);
         }
@@ -382,6 +530,51 @@ public class JDBCDatabase implements Storage {
         }
     }
 
+    /**
+     * Writes the given article to the ArticleSpool if one is configured. The
+     * database stays the primary storage, so errors are only logged.
+     *
+     * @param article
+     */
+    private void spool(Article article) {
+        ArticleSpool spool = ArticleSpool.getInstance();
+        if (spool != null) {
+            try {
+                spool.store(article);
+            } catch (StorageBackendException ex) {
+                Log.get().log(Level.WARNING, "Could not spool article: {0}", ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the article from the ArticleSpool. Articles stored before the
+     * spool was configured are added to it on their first retrieval; if that
+     * fails the loaded article is returned.
+     */
+    @Override
+    public ArticleBuffer getArticleBuffer(String messageID, boolean bodyOnly)
+            throws StorageBackendException {
+        ArticleSpool spool = ArticleSpool.getInstance();
+        if (spool == null) {
+            return null;
+        }
+
+        ByteBuffer buf = spool.get(messageID, bodyOnly);
+        if (buf == null) {
+            Article article = getArticle(messageID);
+            if (article == null) {
+                return ArticleBuffer.NOT_FOUND;
+            }
+            spool(article);
+            buf = spool.get(messageID, bodyOnly);
+            if (buf == null) {
+                return ArticleBuffer.of(article);
+            }
+        }
+        return ArticleBuffer.of(buf);
+    }
+
     /**
      * Retrieves an article by its ID.
      *
@@ -417,7 +610,7 @@ public class JDBCDatabase implements Storage {
     }
 
     /**
-     * Searches for fitting header values using the given regular expression.
+     * Searches for header values matching the given wildmat.
      *
      * @param group
      * @param start
@@ -431,41 +624,75 @@ public class JDBCDatabase implements Storage {
     public List<Pair<Long, String>> getArticleHeaders(Group group, long start,
             long end, String headerKey, String patStr)
             throws StorageBackendException, PatternSyntaxException {
-        ResultSet rs = null;
         List<Pair<Long, String>> heads = new ArrayList<>();
-
         try {
-            this.pstmtGetArticleHeaders1.setString(1, group.getName());
-            this.pstmtGetArticleHeaders1.setString(2, headerKey);
-            this.pstmtGetArticleHeaders1.setLong(3, start);
+            forEachArticleHeader(group, start, end, headerKey, patStr,
+                    (number, value) -> heads.add(new Pair<>(number, value)));
+        } catch (IOException ex) {
+            // Not thrown by the consumer above
+            throw new StorageBackendException(ex);
+        }
+        return heads;
+    }
 
-            rs = this.pstmtGetArticleHeaders1.executeQuery();
+    /**
+     * Passes the header values matching the given wildmat to the consumer
+     * while the rows are fetched from the database. The range is restricted
+     * by the query; if possible the wildmat is translated to a LIKE
+     * pattern so that only candidate rows are transferred.
+     *
+     * @param group
+     * @param start
+     * @param end
+     * @param headerKey
+     * @param patStr
+     * @param consumer
+     * @throws StorageBackendException
+     * @throws IOException
+     */
+    @Override
+    public void forEachArticleHeader(Group group, long start, long end,
+            String headerKey, String patStr, RecordConsumer<String> consumer)
+            throws StorageBackendException, IOException,
+            PatternSyntaxException {
+        final Wildmat wildmat = Wildmat.compile(patStr);
+        final String like = wildmat.getSQLLike();
+        final PreparedStatement pstmt = like == null
+                ? this.pstmtGetArticleHeaders1 : this.pstmtGetArticleHeaders3;
 
-            // Convert the "NNTP" regex to Java regex
-            patStr = patStr.replace("*", ".*");
-            Pattern pattern = Pattern.compile(patStr);
+        ResultSet rs = null;
+        boolean consumed = false;
+        try {
+            beginStreaming();
+            pstmt.setLong(1, group.getInternalID());
+            pstmt.setString(2, headerKey);
+            pstmt.setLong(3, start);
+            pstmt.setLong(4, end < 0 ? Long.MAX_VALUE : end);
+            if (like != null) {
+                pstmt.setString(5, like);
+            }
 
+            rs = pstmt.executeQuery();
             while (rs.next()) {
-                Long articleIndex = rs.getLong(1);
-                if (end < 0 || articleIndex <= end) // Match start is done via
-                                                    // SQL
-                {
-                    String headerValue = rs.getString(2);
-                    Matcher matcher = pattern.matcher(headerValue);
-                    if (matcher.matches()) {
-                        heads.add(new Pair<>(articleIndex,
-                                headerValue));
-                    }
+                // LIKE may ignore case, so the value is always checked
+                String headerValue = rs.getString(2);
+                if (wildmat.matches(headerValue)) {
+                    consumed = true;
+                    consumer.accept(rs.getLong(1), headerValue);
                 }
             }
         } catch (SQLException ex) {
+            if (consumed) {
+                // Some values were already passed on, so we cannot repeat
+                throw new StorageBackendException(ex);
+            }
             restartConnection(ex);
-            return getArticleHeaders(group, start, end, headerKey, patStr);
+            forEachArticleHeader(group, start, end, headerKey, patStr,
+                    consumer);
         } finally {
             closeResultSet(rs);
+            endStreaming();
         }
-
-        return heads;
     }
 
     private String getArticleHeaders(long articleID)
@@ -561,23 +788,228 @@ public class JDBCDatabase implements Storage {
         }
     }
 
+    @Override
+    public List<Pair<Long, String>> getOverview(Group group, long first,
+            long last) throws StorageBackendException {
+        List<Pair<Long, String>> overview = new ArrayList<>();
+        try {
+            forEachOverview(group, first, last,
+                    (number, record) -> overview.add(new Pair<>(number, record)));
+        } catch (IOException ex) {
+            // Not thrown by the consumer above
+            throw new StorageBackendException(ex);
+        }
+        return overview;
+    }
+
+    /**
+     * Passes the overview records stored by addArticle() to the consumer
+     * while the rows are fetched from the database. The records of articles
+     * stored before the overview table existed are built from the headers
+     * and added after the query, see addBackfill().
+     *
+     * @param group
+     * @param first
+     * @param last
+     * @param consumer
+     * @throws StorageBackendException
+     * @throws IOException
+     */
+    @Override
+    public void forEachOverview(Group group, long first, long last,
+            RecordConsumer<String> consumer)
+            throws StorageBackendException, IOException {
+        ResultSet rs = null;
+        boolean consumed = false;
+        List<Object[]> backfill = new ArrayList<>();
+
+        try {
+            beginStreaming();
+            this.pstmtGetOverview.setLong(1, group.getInternalID());
+            this.pstmtGetOverview.setLong(2, first);
+            this.pstmtGetOverview.setLong(3, last);
+            rs = this.pstmtGetOverview.executeQuery();
+
+            while (rs.next()) {
+                long aidx = rs.getLong(1);
+                String record = rs.getString(3);
+                if (record == null) {
+                    record = addOverview(group, aidx, rs.getInt(2), backfill);
+                }
+                consumed = true;
+                consumer.accept(aidx, record);
+            }
+        } catch (SQLException ex) {
+            if (consumed) {
+                // Some records were already passed on, so we cannot repeat
+                throw new StorageBackendException(ex);
+            }
+            restartConnection(ex);
+            forEachOverview(group, first, last, consumer);
+        } finally {
+            closeResultSet(rs);
+            endStreaming();
+        }
+        addBackfill(pstmtAddArticle5, backfill);
+    }
+
+    private String addOverview(Group group, long articleIndex, int articleID,
+            List<Object[]> backfill) throws StorageBackendException {
+        String headers = getArticleHeaders(articleID);
+        String overview = Overview.format(
+                StorageManager.createArticle(headers, null));
+        if (backfill.size() < MAX_BACKFILL) {
+            backfill.add(new Object[] { group.getInternalID(), articleIndex,
+                    articleID, overview });
+        }
+        return overview;
+    }
+
+    /**
+     * Inserts the rows that were found missing by a range query. The rows
+     * are not inserted inside the read transaction: a concurrent request may
+     * add the same row, and the failing insert would abort the transaction
+     * on some databases, e.g. PostgreSQL, and so break the response. In auto
+     * commit mode only the duplicate insert fails and is ignored.
+     *
+     * @param pstmt Insert statement with one parameter per row element.
+     * @param rows
+     */
+    private void addBackfill(PreparedStatement pstmt, List<Object[]> rows) {
+        for (Object[] row : rows) {
+            try {
+                for (int n = 0; n < row.length; n++) {
+                    pstmt.setObject(n + 1, row[n]);
+                }
+                pstmt.execute();
+            } catch (SQLException ex) {
+                // Probably added by a concurrent request meanwhile
+                Log.get().log(Level.FINE, "Could not add missing row: {0}", ex);
+            }
+        }
+    }
+
+    /**
+     * Reads the headers configured with sonews.storage.indexedheaders from
+     * the indexed_headers table; the values of articles stored before the
+     * header was indexed are taken from the headers table and added after
+     * the query, see addBackfill(). Other headers are handled by the default
+     * implementation.
+     *
+     * @param group
+     * @param first
+     * @param last
+     * @param header
+     * @param consumer
+     * @throws StorageBackendException
+     * @throws IOException
+     */
+    @Override
+    public void forEachHeader(Group group, long first, long last,
+            String header, RecordConsumer<String> consumer)
+            throws StorageBackendException, IOException {
+        final String key = header.toLowerCase(Locale.US);
+        if (!indexedHeaders.contains(key)) {
+            Storage.super.forEachHeader(group, first, last, header, consumer);
+            return;
+        }
+
+        ResultSet rs = null;
+        boolean consumed = false;
+        List<Object[]> backfill = new ArrayList<>();
+        try {
+            beginStreaming();
+            this.pstmtGetIndexedHeaders.setString(1, key);
+            this.pstmtGetIndexedHeaders.setLong(2, group.getInternalID());
+            this.pstmtGetIndexedHeaders.setLong(3, first);
+            this.pstmtGetIndexedHeaders.setLong(4, last);
+            rs = this.pstmtGetIndexedHeaders.executeQuery();
+
+            while (rs.next()) {
+                long aidx = rs.getLong(1);
+                String value = rs.getString(3);
+                rs.getInt(4);
+                if (rs.wasNull()) {
+                    value = addIndexedHeader(group, aidx, rs.getInt(2), key,
+                            backfill);
+                }
+                consumed = true;
+                consumer.accept(aidx, value);
+            }
+        } catch (SQLException ex) {
+            if (consumed) {
+                // Some values were already passed on, so we cannot repeat
+                throw new StorageBackendException(ex);
+            }
+            restartConnection(ex);
+            forEachHeader(group, first, last, header, consumer);
+        } finally {
+            closeResultSet(rs);
+            endStreaming();
+        }
+        addBackfill(pstmtAddArticle6, backfill);
+    }
+
+    private String addIndexedHeader(Group group, long articleIndex,
+            int articleID, String key, List<Object[]> backfill) {
+        ResultSet rs = null;
+        String value = "";
+        try {
+            pstmtGetArticleHeaders2.setInt(1, articleID);
+            pstmtGetArticleHeaders2.setString(2, key);
+            rs = pstmtGetArticleHeaders2.executeQuery();
+            if (rs.next()) {
+                value = rs.getString(1);
+            }
+            if (backfill.size() < MAX_BACKFILL) {
+                backfill.add(new Object[] { key, group.getInternalID(),
+                        articleIndex, articleID, value });
+            }
+        } catch (SQLException ex) {
+            // The value is looked up again on the next request
+            Log.get().log(Level.WARNING, "Could not read indexed header: {0}", ex);
+        } finally {
+            closeResultSet(rs);
+        }
+        return value;
+    }
+
     @Override
     public List<Long> getArticleNumbers(long gid)
             throws StorageBackendException {
+        List<Long> ids = new ArrayList<>();
+        try {
+            forEachArticleNumber(gid, (number, record) -> ids.add(number));
+        } catch (IOException ex) {
+            // Not thrown by the consumer above
+            throw new StorageBackendException(ex);
+        }
+        return ids;
+    }
+
+    @Override
+    public void forEachArticleNumber(long gid, RecordConsumer<Void> consumer)
+            throws StorageBackendException, IOException {
         ResultSet rs = null;
+        boolean consumed = false;
         try {
-            List<Long> ids = new ArrayList<>();
+            beginStreaming();
             this.pstmtGetArticleIDs.setLong(1, gid);
             rs = this.pstmtGetArticleIDs.executeQuery();
             while (rs.next()) {
-                ids.add(rs.getLong(1));
+                consumed = true;
+                consumer.accept(rs.getLong(1), null);
             }
-            return ids;
         } catch (SQLException ex) {
+            if (consumed) {
+                // Some numbers were already passed on, so we cannot repeat
+                throw new StorageBackendException(ex);
+            }
             restartConnection(ex);
-            return getArticleNumbers(gid);
+            forEachArticleNumber(gid, consumer);
         } finally {
             closeResultSet(rs);
+            endStreaming();
         }
     }
 
@@ -54,6 +54,36 @@ CREATE CACHED TABLE postings
   article_index INTEGER NOT NULL, 
 
   PRIMARY KEY(group_id, article_id),
+  UNIQUE(group_id, article_index),
+  FOREIGN KEY(article_id) REFERENCES articles(article_id) ON DELETE CASCADE
+);
+
+/*
+  Overview record (OVER/XOVER) of every posting
+*/
+CREATE CACHED TABLE overview
+(
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER,
+  overview      LONGVARCHAR,
+
+  PRIMARY KEY(group_id, article_index),
+  FOREIGN KEY(article_id) REFERENCES articles(article_id) ON DELETE CASCADE
+);
+
+/*
+  Values of the headers listed in sonews.storage.indexedheaders (HDR/XHDR)
+*/
+CREATE CACHED TABLE indexed_headers
+(
+  header_key    VARCHAR(255),
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER,
+  header_value  LONGVARCHAR,
+
+  PRIMARY KEY(header_key, group_id, article_index),
   FOREIGN KEY(article_id) REFERENCES articles(article_id) ON DELETE CASCADE
 );
 
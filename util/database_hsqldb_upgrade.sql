@@ -0,0 +1,43 @@
+/*
+  Upgrades a database created with an older database_hsqldb_tmpl.sql for
+  sonews/2.1. Run it once before starting the new version.
+
+  The overview and indexed_headers tables are filled on demand: the rows
+  of existing articles are added when they are requested first.
+
+  The unique constraint fails if postings contains an article number twice
+  in a group; such duplicates must be removed first.
+*/
+ALTER TABLE postings ADD UNIQUE(group_id, article_index);
+
+/*
+  Overview record (OVER/XOVER) of every posting
+*/
+CREATE CACHED TABLE overview
+(
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER,
+  overview      LONGVARCHAR,
+
+  PRIMARY KEY(group_id, article_index),
+  FOREIGN KEY(article_id) REFERENCES articles(article_id) ON DELETE CASCADE
+);
+
+/*
+  Values of the headers listed in sonews.storage.indexedheaders (HDR/XHDR)
+*/
+CREATE CACHED TABLE indexed_headers
+(
+  header_key    VARCHAR(255),
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER,
+  header_value  LONGVARCHAR,
+
+  PRIMARY KEY(header_key, group_id, article_index),
+  FOREIGN KEY(article_id) REFERENCES articles(article_id) ON DELETE CASCADE
+);
+
+COMMIT;
+SHUTDOWN;
@@ -64,7 +64,41 @@ CREATE TABLE postings
   article_id    INTEGER REFERENCES articles.article_id ON DELETE CASCADE,
   article_index INTEGER NOT NULL, 
 
-  PRIMARY KEY(group_id, article_id)
+  PRIMARY KEY(group_id, article_id),
+  UNIQUE INDEX(group_id, article_index)
+)
+ENGINE = INNODB
+CHARACTER SET utf8;
+
+/*
+  Overview record (OVER/XOVER) of every posting
+*/
+CREATE TABLE overview
+(
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER REFERENCES articles.article_id ON DELETE CASCADE,
+  overview      TEXT,
+
+  PRIMARY KEY(group_id, article_index),
+  INDEX(article_id)
+)
+ENGINE = INNODB
+CHARACTER SET utf8;
+
+/*
+  Values of the headers listed in sonews.storage.indexedheaders (HDR/XHDR)
+*/
+CREATE TABLE indexed_headers
+(
+  header_key    VARCHAR(255),
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER REFERENCES articles.article_id ON DELETE CASCADE,
+  header_value  TEXT,
+
+  PRIMARY KEY(header_key, group_id, article_index),
+  INDEX(article_id)
 )
 ENGINE = INNODB
 CHARACTER SET utf8;
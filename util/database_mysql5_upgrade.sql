@@ -0,0 +1,45 @@
+/*
+  Upgrades a database created with an older database_mysql5_tmpl.sql for
+  sonews/2.1. Run it once before starting the new version:
+    mysql -u sonews -p sonews < database_mysql5_upgrade.sql
+
+  The overview and indexed_headers tables are filled on demand: the rows
+  of existing articles are added when they are requested first.
+
+  The unique index fails if postings contains an article number twice in
+  a group; such duplicates must be removed first.
+*/
+ALTER TABLE postings ADD UNIQUE INDEX (group_id, article_index);
+
+/*
+  Overview record (OVER/XOVER) of every posting
+*/
+CREATE TABLE overview
+(
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER REFERENCES articles.article_id ON DELETE CASCADE,
+  overview      TEXT,
+
+  PRIMARY KEY(group_id, article_index),
+  INDEX(article_id)
+)
+ENGINE = INNODB
+CHARACTER SET utf8;
+
+/*
+  Values of the headers listed in sonews.storage.indexedheaders (HDR/XHDR)
+*/
+CREATE TABLE indexed_headers
+(
+  header_key    VARCHAR(255),
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER REFERENCES articles.article_id ON DELETE CASCADE,
+  header_value  TEXT,
+
+  PRIMARY KEY(header_key, group_id, article_index),
+  INDEX(article_id)
+)
+ENGINE = INNODB
+CHARACTER SET utf8;
@@ -49,5 +49,39 @@ CREATE TABLE postings
 
   PRIMARY KEY(group_id, article_id)
 );
+CREATE UNIQUE INDEX postings_article_index ON postings (group_id, article_index);
 ALTER TABLE postings
   OWNER TO sonews;
+
+/*
+  Overview record (OVER/XOVER) of every posting
+*/
+CREATE TABLE overview
+(
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER REFERENCES articles (article_id) ON DELETE CASCADE,
+  overview      TEXT,
+
+  PRIMARY KEY(group_id, article_index)
+);
+CREATE INDEX overview_article_id ON overview (article_id);
+ALTER TABLE overview
+  OWNER TO sonews;
+
+/*
+  Values of the headers listed in sonews.storage.indexedheaders (HDR/XHDR)
+*/
+CREATE TABLE indexed_headers
+(
+  header_key    VARCHAR(255),
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER REFERENCES articles (article_id) ON DELETE CASCADE,
+  header_value  TEXT,
+
+  PRIMARY KEY(header_key, group_id, article_index)
+);
+CREATE INDEX indexed_headers_article_id ON indexed_headers (article_id);
+ALTER TABLE indexed_headers
+  OWNER TO sonews;
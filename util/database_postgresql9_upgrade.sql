@@ -0,0 +1,46 @@
+/*
+  Upgrades a database created with an older database_postgresql9_tmpl.sql
+  for sonews/2.1. Run it once as owner of the tables before starting the
+  new version:
+    psql -U sonews -d sonews -f database_postgresql9_upgrade.sql
+
+  The overview and indexed_headers tables are filled on demand: the rows
+  of existing articles are added when they are requested first.
+
+  The unique index fails if postings contains an article number twice in
+  a group; such duplicates must be removed first.
+*/
+CREATE UNIQUE INDEX postings_article_index ON postings (group_id, article_index);
+
+/*
+  Overview record (OVER/XOVER) of every posting
+*/
+CREATE TABLE overview
+(
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER REFERENCES articles (article_id) ON DELETE CASCADE,
+  overview      TEXT,
+
+  PRIMARY KEY(group_id, article_index)
+);
+CREATE INDEX overview_article_id ON overview (article_id);
+ALTER TABLE overview
+  OWNER TO sonews;
+
+/*
+  Values of the headers listed in sonews.storage.indexedheaders (HDR/XHDR)
+*/
+CREATE TABLE indexed_headers
+(
+  header_key    VARCHAR(255),
+  group_id      INTEGER,
+  article_index INTEGER,
+  article_id    INTEGER REFERENCES articles (article_id) ON DELETE CASCADE,
+  header_value  TEXT,
+
+  PRIMARY KEY(header_key, group_id, article_index)
+);
+CREATE INDEX indexed_headers_article_id ON indexed_headers (article_id);
+ALTER TABLE indexed_headers
+  OWNER TO sonews;